@@ -19,52 +19,221 @@
 package de.ub0r.android.smsdroid;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import de.ub0r.android.lib.apis.Contact;
 import de.ub0r.android.logg0r.Log;
 
 /**
+ * Fill {@link Conversation}s with contact data. Asynchronous requests are collected for a short
+ * time and resolved on a dedicated background thread. Rows closest to the visible part of the
+ * list are resolved first.
+ *
  * @author flx
  */
-public final class AsyncHelper extends AsyncTask<Void, Void, Void> {
+public final class AsyncHelper {
 
     /**
      * Tag for logging.
      */
     static final String TAG = "ash";
 
+    /**
+     * Time to collect requests before resolving them.
+     */
+    private static final long BATCH_DELAY = 50L;
+
+    /**
+     * Number of requests resolved together. The {@link ConversationAdapter} is notified after
+     * each batch.
+     */
+    private static final int BATCH_SIZE = 10;
+
+    /**
+     * Position of {@link Conversation}s not shown in the list.
+     */
+    static final int NO_POSITION = -1;
+
     /**
      * {@link ConversationAdapter} to invalidate on new data.
      */
     private static ConversationAdapter adapter = null;
 
     /**
-     * {@link Context}.
+     * {@link Handler} for scheduling batches.
+     */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Single background thread resolving contacts.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AsyncHelper");
+        }
+    });
+
+    /**
+     * A pending request.
      */
-    private final Context context;
+    private static final class Request {
+
+        /**
+         * {@link Conversation} to fill.
+         */
+        final Conversation conv;
+
+        /**
+         * Position in list.
+         */
+        final int position;
+
+        /**
+         * Time of enqueuing.
+         */
+        final long enqueued;
+
+        /**
+         * Default constructor.
+         *
+         * @param c   {@link Conversation}
+         * @param pos position in list
+         */
+        Request(final Conversation c, final int pos) {
+            conv = c;
+            position = pos;
+            enqueued = SystemClock.elapsedRealtime();
+        }
+    }
 
     /**
-     * {@link Conversation}.
+     * Pending requests by thread id.
      */
-    private final Conversation conv;
+    private static final LinkedHashMap<Integer, Request> PENDING = new LinkedHashMap<>();
 
     /**
-     * Changed anything?
+     * {@link Context} for resolving pending {@link Conversation}s.
      */
-    private boolean changed = false;
+    private static Context pendingContext = null;
 
     /**
-     * Fill {@link Conversation}.
-     *
-     * @param c   {@link Context}
-     * @param con {@link Conversation}
+     * Is the background thread draining {@link #PENDING}?
+     */
+    private static boolean draining = false;
+
+    /**
+     * First and last visible position of the list.
      */
+    private static int firstVisible = 0, lastVisible = 0;
 
-    private AsyncHelper(final Context c, final Conversation con) {
-        context = c;
-        conv = con;
+    /**
+     * Statistics: resolved requests, sum of wait times, maximal wait time, maximal queue depth.
+     */
+    private static long statResolved = 0L, statWaitSum = 0L, statWaitMax = 0L, statDepthMax = 0L;
+
+    /**
+     * Resolve pending {@link Conversation}s.
+     */
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            final Context context;
+            synchronized (PENDING) {
+                context = pendingContext;
+            }
+            final Request[] batch = new Request[BATCH_SIZE];
+            final long[] recipientIds = new long[BATCH_SIZE];
+            while (true) {
+                int n = 0;
+                synchronized (PENDING) {
+                    while (n < BATCH_SIZE) {
+                        final Request r = pollNext();
+                        if (r == null) {
+                            break;
+                        }
+                        final long wait = SystemClock.elapsedRealtime() - r.enqueued;
+                        ++statResolved;
+                        statWaitSum += wait;
+                        statWaitMax = Math.max(statWaitMax, wait);
+                        batch[n++] = r;
+                    }
+                    if (n == 0) {
+                        draining = false;
+                        pendingContext = null;
+                        break;
+                    }
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    recipientIds[i] = i < n ? batch[i].conv.getContact().getRecipientId() : -1L;
+                }
+                // show addresses and blocked numbers before resolving names
+                if (ContactCache.loadAddresses(context, recipientIds)) {
+                    HANDLER.post(NOTIFY);
+                }
+                boolean changed = false;
+                for (int i = 0; i < n; i++) {
+                    changed |= fill(context, batch[i].conv);
+                    batch[i] = null;
+                }
+                if (changed) {
+                    HANDLER.post(NOTIFY);
+                }
+            }
+        }
+    };
+
+    /**
+     * Start draining pending requests.
+     */
+    private static final Runnable FLUSH = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                EXECUTOR.execute(DRAIN);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "rejected execution", e);
+                synchronized (PENDING) {
+                    PENDING.clear();
+                    draining = false;
+                    pendingContext = null;
+                }
+            }
+        }
+    };
+
+    /**
+     * Invalidate the {@link ConversationAdapter}.
+     */
+    private static final Runnable NOTIFY = new Runnable() {
+        @Override
+        public void run() {
+            notifyAdapter();
+        }
+    };
+
+    /**
+     * Private constructor.
+     */
+    private AsyncHelper() {
     }
 
     /**
@@ -76,47 +245,170 @@ public final class AsyncHelper extends AsyncTask<Void, Void, Void> {
      */
     public static void fillConversation(final Context context, final Conversation c,
             final boolean sync) {
-        Log.d(TAG, "fillConversation(ctx, conv, ", sync, ")");
-        if (context == null || c == null || c.getThreadId() < 0) {
+        fillConversation(context, c, sync, NO_POSITION);
+    }
+
+    /**
+     * Fill Conversations data. If needed: spawn threads.
+     *
+     * @param context  {@link Context}
+     * @param c        {@link Conversation}
+     * @param sync     fetch of information
+     * @param position position in list, {@link #NO_POSITION} if not shown
+     */
+    public static void fillConversation(final Context context, final Conversation c,
+            final boolean sync, final int position) {
+        Log.d(TAG, "fillConversation(ctx, conv, ", sync, ", ", position, ")");
+        if (context == null || c == null || c.getThreadId() < 0
+                || c.getContact().getRecipientId() == Conversation.NO_RECIPIENT) {
+            // nothing to fill before the recipient is loaded
             return;
         }
-        AsyncHelper helper = new AsyncHelper(context, c);
         if (sync) {
-            helper.doInBackground((Void) null);
-        } else {
-            try {
-                helper.execute((Void) null);
-            } catch (RejectedExecutionException e) {
-                Log.e(TAG, "rejected execution", e);
+            // filled right now, a pending request is obsolete
+            synchronized (PENDING) {
+                PENDING.remove(c.getThreadId());
+            }
+            fill(context, c);
+            return;
+        }
+        synchronized (PENDING) {
+            // replace an older request for the same thread
+            PENDING.remove(c.getThreadId());
+            PENDING.put(c.getThreadId(), new Request(c, position));
+            statDepthMax = Math.max(statDepthMax, PENDING.size());
+            if (pendingContext == null) {
+                pendingContext = context.getApplicationContext();
+            }
+            if (!draining) {
+                draining = true;
+                HANDLER.postDelayed(FLUSH, BATCH_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Resolve a {@link Conversation}'s contact and load its avatar if shown.
+     *
+     * @param context {@link Context}
+     * @param c       {@link Conversation}
+     * @return true, if anything changed
+     */
+    private static boolean fill(final Context context, final Conversation c) {
+        final Contact contact = c.getContact();
+        // contacts shared by several conversations are resolved once
+        boolean changed = ContactCache.resolve(context, contact, false);
+        final ConversationAdapter a = adapter;
+        if (a != null && a.showAvatars()) {
+            final int px = a.getAvatarSize();
+            if (AvatarCache.peek(contact, px) == null
+                    && !AvatarCache.isLoadedRecently(contact, px)) {
+                AvatarCache.get(context, contact, px);
+                // rows are bound again only if the avatar is still there to be shown
+                changed |= AvatarCache.peek(contact, px) != null;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Cancel a pending request of a row which is not shown anymore. Requests of visible rows and
+     * requests not made by the list are kept. The {@link Conversation} is filled on its next
+     * update.
+     *
+     * @param threadId thread id
+     */
+    static void cancel(final int threadId) {
+        final Request r;
+        synchronized (PENDING) {
+            final Request p = PENDING.get(threadId);
+            // another visible row may show the same thread
+            if (p == null || p.position == NO_POSITION || getDistance(p.position) == 0) {
+                return;
             }
+            r = PENDING.remove(threadId);
+        }
+        if (r != null) {
+            Log.d(TAG, "cancel: ", threadId);
+            Conversation.invalidate(threadId);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Set the visible part of the list. Requests for visible rows are handled first.
+     *
+     * @param first first visible position
+     * @param last  last visible position
      */
-    @Override
-    protected Void doInBackground(final Void... arg0) {
-        if (conv == null) {
-            return null;
+    static void setVisibleRange(final int first, final int last) {
+        synchronized (PENDING) {
+            firstVisible = first;
+            lastVisible = last;
+        }
+    }
+
+    /**
+     * Remove the request closest to the visible part of the list. Must hold lock on
+     * {@link #PENDING}.
+     *
+     * @return {@link Request} or null
+     */
+    private static Request pollNext() {
+        Request ret = null;
+        int best = Integer.MAX_VALUE;
+        for (Request r : PENDING.values()) {
+            final int d = getDistance(r.position);
+            if (d < best) {
+                best = d;
+                ret = r;
+                if (d == 0) {
+                    break;
+                }
+            }
         }
-        Log.d(TAG, "doInBackground()");
-        try {
-            changed = conv.getContact().update(context, true,
-                    ConversationListActivity.showContactPhoto);
-        } catch (NullPointerException e) {
-            Log.e(TAG, "error updating contact", e);
+        if (ret != null) {
+            PENDING.remove(ret.conv.getThreadId());
+        }
+        return ret;
+    }
+
+    /**
+     * Get the distance of a position to the visible part of the list.
+     *
+     * @param position position
+     * @return distance, 0 if visible
+     */
+    private static int getDistance(final int position) {
+        if (position == NO_POSITION) {
+            return Integer.MAX_VALUE - 1;
+        } else if (position < firstVisible) {
+            return firstVisible - position;
+        } else if (position > lastVisible) {
+            return position - lastVisible;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Log queue depth and wait time statistics.
+     */
+    static void logStats() {
+        synchronized (PENDING) {
+            Log.i(TAG, "fill queue: depth=", PENDING.size(), " max depth=", statDepthMax,
+                    " resolved=", statResolved, " avg wait=",
+                    statResolved == 0L ? 0L : statWaitSum / statResolved, "ms max wait=",
+                    statWaitMax, "ms");
         }
-        return null;
     }
 
     /**
-     * {@inheritDoc}
+     * Invalidate data of the {@link ConversationAdapter}, if any.
      */
-    @Override
-    protected void onPostExecute(final Void result) {
-        if (changed && adapter != null) {
-            adapter.notifyDataSetChanged();
+    static void notifyAdapter() {
+        final ConversationAdapter a = adapter;
+        if (a != null) {
+            a.notifyDataSetChanged();
         }
     }
 
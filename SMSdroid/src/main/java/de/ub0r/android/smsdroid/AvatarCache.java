@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.DisplayMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import de.ub0r.android.lib.apis.Contact;
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * Cache of contact photos, decoded and scaled to the size they are shown in. Conversation list,
+ * grid and notifications share it.
+ *
+ * @author flx
+ */
+public final class AvatarCache {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "avc";
+
+    /**
+     * Maximal number of cached avatars.
+     */
+    private static final int CACHESIZE = 200;
+
+    /**
+     * Maximal size of all cached avatars in bytes until the budget is set.
+     */
+    private static final long CACHE_BYTES = 4L * 1024L * 1024L;
+
+    /**
+     * Part of the heap used for caching avatars.
+     */
+    private static final int CACHE_HEAP_FRACTION = 8;
+
+    /**
+     * Maximal part of the heap used for caching avatars.
+     */
+    private static final int CACHE_HEAP_FRACTION_MAX = 4;
+
+    /**
+     * An avatar evicted this soon after loading is not loaded again, it would evict another shown
+     * avatar.
+     */
+    private static final long RELOAD_DELAY = 1000L;
+
+    /**
+     * Maximal number of pooled bitmaps.
+     */
+    private static final int POOLSIZE = 3;
+
+    /**
+     * Avatar size is stored in the lower bits of the cache key.
+     */
+    private static final int SIZE_BITS = 12;
+
+    /**
+     * Internal cache, keyed by recipient id and size. Holds {@link Conversation#NO_PHOTO} for
+     * contacts without photo.
+     */
+    private static final LongLruCache<Bitmap> CACHE = new LongLruCache<>(CACHESIZE, CACHE_BYTES);
+
+    /**
+     * Time of last load, keyed like {@link #CACHE}.
+     */
+    private static final LongLruCache<Long> LOADED = new LongLruCache<>(CACHESIZE);
+
+    /**
+     * Bitmaps to decode into. Only holds intermediate bitmaps never shown to the user.
+     */
+    private static final ArrayList<Bitmap> POOL = new ArrayList<>(POOLSIZE);
+
+    /**
+     * Private constructor.
+     */
+    private AvatarCache() {
+    }
+
+    /**
+     * Get the key for the internal cache.
+     *
+     * @param contact {@link Contact}
+     * @param px      size in pixel
+     * @return key
+     */
+    private static long getKey(final Contact contact, final int px) {
+        final long rid = contact.getRecipientId();
+        return rid << SIZE_BITS | (px & ((1 << SIZE_BITS) - 1));
+    }
+
+    /**
+     * Get a cached avatar without loading it.
+     *
+     * @param contact {@link Contact}
+     * @param px      size in pixel
+     * @return avatar, {@link Conversation#NO_PHOTO} if there is none or null if not cached
+     */
+    public static Bitmap peek(final Contact contact, final int px) {
+        return CACHE.get(getKey(contact, px));
+    }
+
+    /**
+     * Check whether an avatar was loaded just now. It is not worth loading it again if it was
+     * evicted already.
+     *
+     * @param contact {@link Contact}
+     * @param px      size in pixel
+     * @return true, if the avatar was loaded less than {@link #RELOAD_DELAY} ago
+     */
+    static boolean isLoadedRecently(final Contact contact, final int px) {
+        final Long t = LOADED.get(getKey(contact, px));
+        return t != null && SystemClock.elapsedRealtime() - t < RELOAD_DELAY;
+    }
+
+    /**
+     * Set the memory budget of the cache according to the device's memory class. The budget
+     * holds at least avatars covering the whole screen twice, as long as this takes no more than
+     * a quarter of the heap.
+     *
+     * @param memoryClass memory class in MB
+     * @param metrics     {@link DisplayMetrics} of the screen
+     */
+    static void setCacheBudget(final int memoryClass, final DisplayMetrics metrics) {
+        final long heap = memoryClass * 1024L * 1024L;
+        final long screen = 2L * 4L * metrics.widthPixels * metrics.heightPixels;
+        final long bytes = Math.min(Math.max(heap / CACHE_HEAP_FRACTION, screen),
+                heap / CACHE_HEAP_FRACTION_MAX);
+        Log.i(TAG, "cache budget: ", bytes);
+        CACHE.setMaxWeight(bytes);
+    }
+
+    /**
+     * Get an avatar, load it if needed. Do not call from the main thread.
+     *
+     * @param context {@link Context}
+     * @param contact {@link Contact}, must be resolved already
+     * @param px      size in pixel
+     * @return avatar or {@link Conversation#NO_PHOTO} if there is none
+     */
+    public static Bitmap get(final Context context, final Contact contact, final int px) {
+        final long key = getKey(contact, px);
+        Bitmap ret = CACHE.get(key);
+        if (ret != null) {
+            return ret;
+        }
+        final Uri uri = contact.getUri();
+        // unknown contacts are cached as well, the cache is flushed if contacts change
+        ret = uri == null ? null : load(context, uri, px);
+        if (ret == null) {
+            ret = Conversation.NO_PHOTO;
+        }
+        CACHE.put(key, ret, getByteCount(ret), false);
+        LOADED.put(key, SystemClock.elapsedRealtime());
+        return ret;
+    }
+
+    /**
+     * Remove all avatars from cache.
+     */
+    static void flush() {
+        CACHE.evictAll();
+        LOADED.evictAll();
+    }
+
+    /**
+     * Load and scale a contact's photo.
+     *
+     * @param context {@link Context}
+     * @param uri     contact's {@link Uri}
+     * @param px      size in pixel
+     * @return {@link Bitmap} or null
+     */
+    private static Bitmap load(final Context context, final Uri uri, final int px) {
+        final byte[] data;
+        InputStream is = null;
+        try {
+            is = ContactsContract.Contacts.openContactPhotoInputStream(
+                    context.getContentResolver(), uri, px > 96);
+            if (is == null) {
+                return null;
+            }
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int len = is.read(buffer);
+            while (len >= 0) {
+                baos.write(buffer, 0, len);
+                len = is.read(buffer);
+            }
+            data = baos.toByteArray();
+        } catch (IOException | IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "error loading photo: ", uri, e);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close stream", e);
+                }
+            }
+        }
+
+        // get the photo's size first, then decode it downsampled
+        final BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, o);
+        if (o.outWidth <= 0 || o.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.min(o.outWidth, o.outHeight) / (sampleSize * 2) >= px) {
+            sampleSize *= 2;
+        }
+        o.inJustDecodeBounds = false;
+        o.inSampleSize = sampleSize;
+        o.inMutable = true;
+        final Bitmap pooled = takeFromPool(o.outWidth / sampleSize, o.outHeight / sampleSize);
+        o.inBitmap = pooled;
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, o);
+        } catch (IllegalArgumentException e) {
+            // pooled bitmap did not fit
+            returnToPool(pooled);
+            o.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, o);
+        }
+        if (decoded == null) {
+            returnToPool(o.inBitmap);
+            return null;
+        }
+        if (decoded.getWidth() == px && decoded.getHeight() == px) {
+            return decoded;
+        }
+        final Bitmap ret = Bitmap.createScaledBitmap(decoded, px, px, true);
+        if (ret != decoded) {
+            returnToPool(decoded);
+        }
+        return ret;
+    }
+
+    /**
+     * Get a bitmap to decode a photo of given size into.
+     *
+     * @param width  width
+     * @param height height
+     * @return {@link Bitmap} or null
+     */
+    @SuppressWarnings("NewApi")
+    private static Bitmap takeFromPool(final int width, final int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // older devices need exactly matching bitmaps, pooling rarely hits
+            return null;
+        }
+        final int needed = width * height * 4;
+        synchronized (POOL) {
+            for (int i = 0; i < POOL.size(); i++) {
+                if (POOL.get(i).getAllocationByteCount() >= needed) {
+                    return POOL.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a bitmap back into the pool.
+     *
+     * @param b {@link Bitmap}
+     */
+    private static void returnToPool(final Bitmap b) {
+        if (b == null || !b.isMutable() || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        synchronized (POOL) {
+            if (POOL.size() < POOLSIZE) {
+                POOL.add(b);
+                return;
+            }
+        }
+        b.recycle();
+    }
+
+    /**
+     * Get the size of a bitmap.
+     *
+     * @param b {@link Bitmap}
+     * @return size in bytes
+     */
+    private static long getByteCount(final Bitmap b) {
+        return b == Conversation.NO_PHOTO ? 0L : b.getByteCount();
+    }
+}
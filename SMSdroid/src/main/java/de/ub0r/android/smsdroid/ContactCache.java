@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.Manifest;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.ub0r.android.lib.apis.Contact;
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * App wide cache of resolved {@link Contact}s, keyed by recipient id. All {@link Conversation}s
+ * with the same recipient share a single {@link Contact}.
+ *
+ * @author flx
+ */
+public final class ContactCache {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "coc";
+
+    /**
+     * Cache size.
+     */
+    private static final int CACHESIZE = 256;
+
+    /**
+     * Time to live of resolved contact data.
+     */
+    private static final long TTL = 10L * 60L * 1000L;
+
+    /**
+     * {@link Uri} of all recipients' addresses.
+     */
+    private static final Uri URI_ADDRESSES = Uri.parse("content://mms-sms/canonical-addresses");
+
+    /**
+     * Projection for {@link #URI_ADDRESSES}.
+     */
+    private static final String[] PROJECTION_ADDRESSES = new String[]{"_id", "address"};
+
+    /**
+     * Cached {@link Contact}.
+     */
+    private static final class Entry {
+
+        /**
+         * Shared {@link Contact}.
+         */
+        final Contact contact;
+
+        /**
+         * Time of last resolution, 0 if never resolved.
+         */
+        long resolved = 0L;
+
+        /**
+         * Value of {@link #GENERATION} at last resolution.
+         */
+        int generation;
+
+        /**
+         * Was the avatar loaded at last resolution?
+         */
+        boolean avatar = false;
+
+        /**
+         * Recipient's address, null if not loaded yet. It never changes for a recipient id.
+         */
+        String address = null;
+
+        /**
+         * Default constructor.
+         *
+         * @param c {@link Contact}
+         */
+        Entry(final Contact c) {
+            contact = c;
+        }
+    }
+
+    /**
+     * Internal cache.
+     */
+    private static final LruCache<Long, Entry> CACHE = new LruCache<>(CACHESIZE);
+
+    /**
+     * Incremented each time contacts change.
+     */
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+
+    /**
+     * Observer for contacts, null if not registered yet.
+     */
+    private static ContentObserver observer = null;
+
+    /**
+     * Private constructor.
+     */
+    private ContactCache() {
+    }
+
+    /**
+     * Start observing changes to contacts. Does nothing without permission to read contacts.
+     *
+     * @param context {@link Context}
+     */
+    static synchronized void init(final Context context) {
+        if (observer != null
+                || !SMSdroid.hasPermission(context, Manifest.permission.READ_CONTACTS)) {
+            return;
+        }
+        final ContentObserver o = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                Log.d(TAG, "contacts changed");
+                invalidate();
+                AvatarCache.flush();
+                Conversation.invalidateContacts();
+                AsyncHelper.notifyAdapter();
+            }
+        };
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, o);
+            observer = o;
+        } catch (SecurityException e) {
+            Log.e(TAG, "unable to observe contacts", e);
+        }
+    }
+
+    /**
+     * Mark all cached contact data as outdated.
+     */
+    static void invalidate() {
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Get the shared {@link Contact} for a recipient. The {@link Contact} may not be resolved yet.
+     *
+     * @param recipientId recipient id
+     * @return {@link Contact}
+     */
+    public static Contact get(final long recipientId) {
+        return getEntry(recipientId).contact;
+    }
+
+    /**
+     * Get the entry for a recipient, create it if needed.
+     *
+     * @param recipientId recipient id
+     * @return {@link Entry}
+     */
+    private static Entry getEntry(final long recipientId) {
+        Entry e = CACHE.get(recipientId);
+        if (e == null) {
+            synchronized (CACHE) {
+                e = CACHE.get(recipientId);
+                if (e == null) {
+                    e = new Entry(new Contact(recipientId));
+                    CACHE.put(recipientId, e);
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Load the addresses of several recipients with a single query. Addresses loaded before are
+     * not loaded again.
+     *
+     * @param context      {@link Context}
+     * @param recipientIds recipient ids
+     * @return true, if any address was loaded
+     */
+    static boolean loadAddresses(final Context context, final long[] recipientIds) {
+        final StringBuilder sel = new StringBuilder("_id IN (");
+        int n = 0;
+        for (long rid : recipientIds) {
+            if (rid > 0L && getEntry(rid).address == null) {
+                if (n++ > 0) {
+                    sel.append(',');
+                }
+                sel.append(rid);
+            }
+        }
+        if (n == 0) {
+            return false;
+        }
+        sel.append(')');
+        Log.d(TAG, "loadAddresses(): ", n);
+        boolean ret = false;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(URI_ADDRESSES, PROJECTION_ADDRESSES,
+                    sel.toString(), null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String address = cursor.getString(1);
+                if (address != null) {
+                    final Entry e = getEntry(cursor.getLong(0));
+                    synchronized (e) {
+                        e.address = address;
+                    }
+                    ret = true;
+                }
+            }
+        } catch (SQLiteException | SecurityException e) {
+            Log.e(TAG, "unable to load addresses", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get a recipient's address. It is known before the {@link Contact} is resolved if it was
+     * loaded by {@link #loadAddresses(Context, long[])}.
+     *
+     * @param contact {@link Contact}
+     * @return address or null if unknown
+     */
+    static String getAddress(final Contact contact) {
+        final String number = contact.getNumber();
+        if (number != null) {
+            return number;
+        }
+        final Entry e = CACHE.get(contact.getRecipientId());
+        if (e == null) {
+            return null;
+        }
+        synchronized (e) {
+            return e.address;
+        }
+    }
+
+    /**
+     * Resolve a {@link Contact}'s name, number and lookup uri. Nothing is done if the data
+     * resolved earlier is still valid.
+     *
+     * @param context    {@link Context}
+     * @param contact    {@link Contact}
+     * @param loadAvatar load the {@link Contact}'s avatar
+     * @return true, if the {@link Contact} changed
+     */
+    public static boolean resolve(final Context context, final Contact contact,
+            final boolean loadAvatar) {
+        final long recipientId = contact.getRecipientId();
+        final Entry e = CACHE.get(recipientId);
+        if (e == null || e.contact != contact) {
+            // not shared, resolve it on its own
+            return update(context, contact, false, loadAvatar);
+        }
+        final long now = System.currentTimeMillis();
+        final int g = GENERATION.get();
+        final boolean loadOnly;
+        synchronized (e) {
+            if (e.resolved > 0L && now - e.resolved < TTL && e.generation == g
+                    && (e.avatar || !loadAvatar)) {
+                return false;
+            }
+            // reload everything if known data went stale
+            loadOnly = e.resolved == 0L;
+        }
+        // the lookup is done without holding the lock, concurrent lookups of the same contact
+        // are cheap compared to blocking all other readers
+        final boolean ret = update(context, contact, loadOnly, loadAvatar);
+        synchronized (e) {
+            if (e.resolved <= now) {
+                e.resolved = now;
+                e.generation = g;
+                e.avatar = loadAvatar;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Update a {@link Contact}.
+     *
+     * @param context    {@link Context}
+     * @param contact    {@link Contact}
+     * @param loadOnly   load missing data only
+     * @param loadAvatar load the {@link Contact}'s avatar
+     * @return true, if the {@link Contact} changed
+     */
+    private static boolean update(final Context context, final Contact contact,
+            final boolean loadOnly, final boolean loadAvatar) {
+        try {
+            return contact.update(context, loadOnly, loadAvatar);
+        } catch (NullPointerException e) {
+            Log.e(TAG, "error updating contact", e);
+            return false;
+        }
+    }
+}
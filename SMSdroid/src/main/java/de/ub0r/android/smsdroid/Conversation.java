@@ -18,14 +18,17 @@
  */
 package de.ub0r.android.smsdroid;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.CallLog.Calls;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
 
-import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.ub0r.android.lib.apis.Contact;
 import de.ub0r.android.logg0r.Log;
@@ -43,15 +46,29 @@ public final class Conversation {
     static final String TAG = "con";
 
     /**
-     * Cache size.
+     * Minimal cache size.
      */
-    private static final int CACHESIZE = 50;
+    private static final int CACHESIZE_MIN = 50;
 
     /**
-     * Internal Cache.
+     * Maximal cache size.
      */
-    private static final LinkedHashMap<Integer, Conversation> CACHE
-            = new LinkedHashMap<>(26, 0.9f, true);
+    private static final int CACHESIZE_MAX = 1000;
+
+    /**
+     * Number of cached conversations per MB of available heap.
+     */
+    private static final int CACHESIZE_PER_MB = 4;
+
+    /**
+     * Recipient id of conversations whose recipient is not loaded yet.
+     */
+    static final long NO_RECIPIENT = -1L;
+
+    /**
+     * Internal Cache. Created on first use, sized by the device's memory class.
+     */
+    private static volatile LruCache<Integer, Conversation> cache = null;
 
     /**
      * No photo available.
@@ -142,9 +159,14 @@ public final class Conversation {
     static final String DATE_FORMAT = "dd.MM. kk:mm";
 
     /**
-     * Time of valid cache.
+     * Threads marked as changed by {@link #invalidate(int)}.
+     */
+    private static final SparseBooleanArray DIRTY = new SparseBooleanArray();
+
+    /**
+     * Incremented each time contact data changes.
      */
-    private static long validCache = 0;
+    private static final AtomicInteger CONTACTS_GENERATION = new AtomicInteger();
 
     /**
      * Id.
@@ -188,9 +210,9 @@ public final class Conversation {
     private int count = -1;
 
     /**
-     * Last update.
+     * Value of {@link #CONTACTS_GENERATION} at the last fetch of contact data.
      */
-    private long lastUpdate = 0L;
+    private int contactsVersion;
 
     /** Name. */
     // private String name = null;
@@ -210,10 +232,16 @@ public final class Conversation {
         body = cursor.getString(INDEX_SIMPLE_BODY);
         read = cursor.getInt(INDEX_SIMPLE_READ);
         count = cursor.getInt(INDEX_SIMPLE_COUNT);
-        contact = new Contact(cursor.getInt(INDEX_SIMPLE_NID));
+        contactsVersion = CONTACTS_GENERATION.get();
+        clearDirty(threadId);
+        if (cursor.isNull(INDEX_SIMPLE_NID)) {
+            // rows still loading have no recipient, it is set and filled on the next update
+            contact = new Contact(NO_RECIPIENT);
+            return;
+        }
+        contact = ContactCache.get(cursor.getInt(INDEX_SIMPLE_NID));
 
-        AsyncHelper.fillConversation(context, this, sync);
-        lastUpdate = System.currentTimeMillis();
+        AsyncHelper.fillConversation(context, this, sync, cursor.getPosition());
     }
 
     /**
@@ -229,22 +257,82 @@ public final class Conversation {
             Log.e(TAG, "Conversation.update() on null/closed cursor");
             return;
         }
-        long d = cursor.getLong(INDEX_SIMPLE_DATE);
-        if (d != date) {
-            id = cursor.getInt(INDEX_SIMPLE_ID);
-            date = d;
-            body = cursor.getString(INDEX_SIMPLE_BODY);
+        boolean fill = clearDirty(threadId);
+        synchronized (this) {
+            long d = cursor.getLong(INDEX_SIMPLE_DATE);
+            if (d != date) {
+                id = cursor.getInt(INDEX_SIMPLE_ID);
+                date = d;
+                body = cursor.getString(INDEX_SIMPLE_BODY);
+                fill = true;
+            } else if (body == null) {
+                // rows of the snapshot have no body
+                body = cursor.getString(INDEX_SIMPLE_BODY);
+            }
+            count = cursor.getInt(INDEX_SIMPLE_COUNT);
+            read = cursor.getInt(INDEX_SIMPLE_READ);
+            final int nid = cursor.getInt(INDEX_SIMPLE_NID);
+            // rows still loading have no recipient
+            if (nid != contact.getRecipientId() && !cursor.isNull(INDEX_SIMPLE_NID)) {
+                contact = ContactCache.get(nid);
+                fill = true;
+            }
+            final int g = CONTACTS_GENERATION.get();
+            if (contactsVersion != g) {
+                contactsVersion = g;
+                fill = true;
+            }
         }
-        count = cursor.getInt(INDEX_SIMPLE_COUNT);
-        read = cursor.getInt(INDEX_SIMPLE_READ);
-        final int nid = cursor.getInt(INDEX_SIMPLE_NID);
-        if (nid != contact.getRecipientId()) {
-            contact = new Contact(nid);
+        if (fill) {
+            // fetch contact outside of the lock
+            AsyncHelper.fillConversation(context, this, sync, cursor.getPosition());
         }
-        if (lastUpdate < validCache) {
-            AsyncHelper.fillConversation(context, this, sync);
-            lastUpdate = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the internal cache, create it if needed.
+     *
+     * @param context {@link Context}
+     * @return cache
+     */
+    private static LruCache<Integer, Conversation> getCache(final Context context) {
+        LruCache<Integer, Conversation> c = cache;
+        if (c == null) {
+            synchronized (Conversation.class) {
+                c = cache;
+                if (c == null) {
+                    final int size = getCacheSize(context);
+                    Log.i(TAG, "cachesize: ", size);
+                    c = new LruCache<Integer, Conversation>(size) {
+                        @Override
+                        protected void entryRemoved(final boolean evicted, final Integer key,
+                                final Conversation oldValue, final Conversation newValue) {
+                            if (evicted) {
+                                Log.d(TAG, "rm con. from cache: ", key);
+                            }
+                        }
+                    };
+                    cache = c;
+                }
+            }
         }
+        return c;
+    }
+
+    /**
+     * Get the cache size matching the device's memory.
+     *
+     * @param context {@link Context}
+     * @return number of {@link Conversation}s to keep in cache
+     */
+    private static int getCacheSize(final Context context) {
+        final ActivityManager am = (ActivityManager) context.getApplicationContext()
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return CACHESIZE_MIN;
+        }
+        final int size = am.getMemoryClass() * CACHESIZE_PER_MB;
+        return Math.max(CACHESIZE_MIN, Math.min(CACHESIZE_MAX, size));
     }
 
     /**
@@ -258,26 +346,18 @@ public final class Conversation {
     public static Conversation getConversation(final Context context, final Cursor cursor,
             final boolean sync) {
         Log.d(TAG, "getConversation(", sync, ")");
-        synchronized (CACHE) {
-            Conversation ret = CACHE.get(cursor.getInt(INDEX_SIMPLE_ID));
-            if (ret == null) {
-                ret = new Conversation(context, cursor, sync);
-                CACHE.put(ret.getThreadId(), ret);
-                Log.d(TAG, "cachesize: ", CACHE.size());
-                while (CACHE.size() > CACHESIZE) {
-                    Integer i = CACHE.keySet().iterator().next();
-                    Log.d(TAG, "rm con. from cache: ", i);
-                    Conversation cc = CACHE.remove(i);
-                    if (cc == null) {
-                        Log.w(TAG, "CACHE might be inconsistent!");
-                        break;
-                    }
-                }
-            } else {
-                ret.update(context, cursor, sync);
-            }
-            return ret;
+        final LruCache<Integer, Conversation> c = getCache(context);
+        final int threadId = cursor.getInt(INDEX_SIMPLE_ID);
+        Conversation ret = c.get(threadId);
+        if (ret == null) {
+            // the cache is not locked while loading, concurrent loads of the same thread are
+            // cheap compared to blocking all other readers
+            ret = new Conversation(context, cursor, sync);
+            c.put(threadId, ret);
+        } else {
+            ret.update(context, cursor, sync);
         }
+        return ret;
     }
 
     /**
@@ -291,36 +371,81 @@ public final class Conversation {
     public static Conversation getConversation(final Context context, final int threadId,
             final boolean forceUpdate) {
         Log.d(TAG, "getConversation(", threadId, ")");
-        synchronized (CACHE) {
-            Conversation ret = CACHE.get(threadId);
-            if (ret == null || ret.getContact().getNumber() == null || forceUpdate) {
-                Cursor cursor = context.getContentResolver().query(URI_SIMPLE, PROJECTION_SIMPLE,
-                        ID + " = ?", new String[]{String.valueOf(threadId)}, null);
+        Conversation ret = getCache(context).get(threadId);
+        if (ret == null || ret.getContact().getNumber() == null || forceUpdate) {
+            final Cursor cursor = context.getContentResolver().query(URI_SIMPLE,
+                    PROJECTION_SIMPLE, ID + " = ?", new String[]{String.valueOf(threadId)},
+                    null);
+            if (cursor == null) {
+                return ret;
+            }
+            try {
                 if (cursor.moveToFirst()) {
                     ret = getConversation(context, cursor, true);
                 } else {
                     Log.e(TAG, "did not found conversation: ", threadId);
                 }
+            } finally {
                 cursor.close();
             }
-            return ret;
         }
+        return ret;
     }
 
     /**
      * Flush all cached conversations.
      */
     public static void flushCache() {
-        synchronized (CACHE) {
-            CACHE.clear();
+        final LruCache<Integer, Conversation> c = cache;
+        if (c != null) {
+            c.evictAll();
+        }
+    }
+
+    /**
+     * Log hit, miss and eviction counters of the internal cache.
+     */
+    static void logCacheStats() {
+        final LruCache<Integer, Conversation> c = cache;
+        if (c != null) {
+            Log.i(TAG, "cache: size=", c.size(), "/", c.maxSize(), " hits=", c.hitCount(),
+                    " misses=", c.missCount(), " evictions=", c.evictionCount());
+        }
+    }
+
+    /**
+     * Mark a single {@link Conversation} as changed. Its contact is fetched again on next update.
+     *
+     * @param threadId thread id
+     */
+    public static void invalidate(final int threadId) {
+        synchronized (DIRTY) {
+            DIRTY.put(threadId, true);
         }
     }
 
     /**
-     * Invalidate Cache.
+     * Mark contact data of all {@link Conversation}s as changed.
      */
-    public static void invalidate() {
-        validCache = System.currentTimeMillis();
+    public static void invalidateContacts() {
+        CONTACTS_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Remove the changed mark from a {@link Conversation}.
+     *
+     * @param threadId thread id
+     * @return true, if the {@link Conversation} was marked as changed
+     */
+    private static boolean clearDirty(final int threadId) {
+        synchronized (DIRTY) {
+            final int i = DIRTY.indexOfKey(threadId);
+            if (i < 0) {
+                return false;
+            }
+            DIRTY.removeAt(i);
+            return true;
+        }
     }
 
     /**
@@ -336,7 +461,7 @@ public final class Conversation {
      * @param nid the numberId
      */
     public void setNumberId(final long nid) {
-        contact = new Contact(nid);
+        contact = ContactCache.get(nid);
     }
 
     /**
@@ -362,6 +487,13 @@ public final class Conversation {
         return contact;
     }
 
+    /**
+     * @return value of the contacts generation at the last fetch of contact data
+     */
+    int getContactsVersion() {
+        return contactsVersion;
+    }
+
     /**
      * @return the body
      */
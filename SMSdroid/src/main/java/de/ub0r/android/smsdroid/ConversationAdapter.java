@@ -19,19 +19,21 @@
 package de.ub0r.android.smsdroid;
 
 import android.app.Activity;
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.provider.CallLog.Calls;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
@@ -62,14 +64,9 @@ public class ConversationAdapter extends ResourceCursorAdapter {
     private final int textSize, textColor;
 
     /**
-     * {@link BackgroundQueryHandler}.
+     * Number of the last started query, older results are dropped.
      */
-    private final BackgroundQueryHandler queryHandler;
-
-    /**
-     * Token for {@link BackgroundQueryHandler}: message list query.
-     */
-    private static final int MESSAGE_LIST_QUERY_TOKEN = 0;
+    private int queryGeneration = 0;
 
     /**
      * Reference to {@link ConversationListActivity}.
@@ -77,35 +74,40 @@ public class ConversationAdapter extends ResourceCursorAdapter {
     private final Activity activity;
 
     /**
-     * List of blocked numbers.
+     * {@link Uri} notified on any change of messages.
      */
-    private final String[] blacklist;
+    private static final Uri URI_CHANGES = Uri.parse("content://mms-sms/");
 
     /**
-     * {@link ContactsWrapper}.
+     * Observer for changes of messages.
      */
-    private static final ContactsWrapper WRAPPER = ContactsWrapper.getInstance();
+    private final ContentObserver observer;
 
     /**
-     * Default {@link Drawable} for {@link Contact}s.
+     * Is the cursor a result of a real query, not a snapshot?
      */
-    private Drawable defaultContactAvatar = null;
+    private boolean live = false;
 
     /**
-     * Convert NCR.
+     * {@link ContactsWrapper}.
      */
-    private final boolean convertNCR;
+    private static final ContactsWrapper WRAPPER = ContactsWrapper.getInstance();
 
     /**
-     * Show emoticons as images
+     * Default {@link Drawable} for {@link Contact}s.
      */
-    private final boolean showEmoticons;
+    private Drawable defaultContactAvatar = null;
 
     /**
      * Use grid instead of list.
      */
     private final boolean useGridLayout;
 
+    /**
+     * Size of {@link Contact}'s avatar in pixel.
+     */
+    private final int avatarSize;
+
     /**
      * View holder.
      */
@@ -122,39 +124,11 @@ public class ConversationAdapter extends ResourceCursorAdapter {
         ImageView ivPhoto;
 
         View vRead;
-    }
-
-    /**
-     * Handle queries in background.
-     *
-     * @author flx
-     */
-    private final class BackgroundQueryHandler extends AsyncQueryHandler {
-
-        /**
-         * A helper class to help make handling asynchronous {@link ContentResolver} queries
-         * easier.
-         *
-         * @param contentResolver {@link ContentResolver}
-         */
-        public BackgroundQueryHandler(final ContentResolver contentResolver) {
-            super(contentResolver);
-        }
 
         /**
-         * {@inheritDoc}
+         * Thread id of the last bound {@link Conversation}.
          */
-        @Override
-        protected void onQueryComplete(final int token, final Object cookie, final Cursor cursor) {
-            switch (token) {
-                case MESSAGE_LIST_QUERY_TOKEN:
-                    ConversationAdapter.this.changeCursor(cursor);
-                    ConversationAdapter.this.activity
-                            .setProgressBarIndeterminateVisibility(Boolean.FALSE);
-                    return;
-                default:
-            }
-        }
+        int threadId = -1;
     }
 
     /**
@@ -170,57 +144,169 @@ public class ConversationAdapter extends ResourceCursorAdapter {
         useGridLayout = p.getBoolean("use_gridlayout", false);
         if (useGridLayout) {
             super.setViewResource(R.layout.conversation_square);
+            avatarSize = c.getResources().getDimensionPixelSize(R.dimen.avatar_size_grid);
+        } else {
+            avatarSize = c.getResources().getDimensionPixelSize(R.dimen.avatar_size_list);
         }
         final ContentResolver cr = c.getContentResolver();
-        queryHandler = new BackgroundQueryHandler(cr);
-        blacklist = SpamDB.getBlacklist(c);
+        SpamDB.preload(c, new Runnable() {
+            @Override
+            public void run() {
+                // mark blocked conversations
+                notifyDataSetChanged();
+            }
+        });
 
         defaultContactAvatar = c.getResources().getDrawable(R.drawable.ic_contact_picture);
 
-        convertNCR = PreferencesActivity.decodeDecimalNCR(c);
-        showEmoticons = PreferencesActivity.showEmoticons(c);
         textSize = PreferencesActivity.getTextsize(c);
         textColor = PreferencesActivity.getTextcolor(c);
+        ConversationRow.setFormat(PreferencesActivity.decodeDecimalNCR(c),
+                PreferencesActivity.showEmoticons(c));
 
-        Cursor cursor = null;
+        observer = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(final boolean selfChange, final Uri uri) {
+                if (!selfChange) {
+                    // changed conversations are found by comparing the new list to the old one
+                    Log.d(TAG, "call startMsgListQuery();");
+                    ConversationAdapter.this.startMsgListQuery();
+                }
+            }
+        };
+        // register without querying, the list itself is queried in background
         try {
-            cursor = cr.query(Conversation.URI_SIMPLE, Conversation.PROJECTION_SIMPLE,
-                    Conversation.COUNT + ">0", null, null);
-        } catch (Exception e) {
-            Log.e(TAG, "error getting conversations", e);
+            cr.registerContentObserver(URI_CHANGES, true, observer);
+        } catch (SecurityException e) {
+            Log.e(TAG, "unable to observe conversations", e);
         }
 
-        if (cursor != null) {
-            cursor.registerContentObserver(new ContentObserver(new Handler()) {
-                @Override
-                public void onChange(final boolean selfChange) {
-                    super.onChange(selfChange);
-                    if (!selfChange) {
-                        Log.d(TAG, "call startMsgListQuery();");
-                        ConversationAdapter.this.startMsgListQuery();
-                        Log.d(TAG, "invalidate cache");
-                        Conversation.invalidate();
-                    }
+        // show the last known conversations until the query is done
+        ConversationSnapshot.load(c, new ConversationSnapshot.OnLoadedListener() {
+            @Override
+            public void onSnapshotLoaded(final Cursor cursor) {
+                if (live || activity.isFinishing()) {
+                    cursor.close();
+                } else {
+                    Log.d(TAG, "show snapshot");
+                    changeCursor(cursor);
                 }
-            });
+            }
+        });
+    }
+
+    /**
+     * Stop observing changes of messages.
+     */
+    final void close() {
+        activity.getContentResolver().unregisterContentObserver(observer);
+        // drop running queries
+        ++queryGeneration;
+    }
+
+    /**
+     * Get the thread id from a conversation's {@link Uri}.
+     *
+     * @param uri {@link Uri}
+     * @return thread id or -1
+     */
+    static int getThreadId(final Uri uri) {
+        if (uri == null || !uri.toString().startsWith(ConversationListActivity.URI.toString())) {
+            return -1;
         }
-        // startMsgListQuery();
+        try {
+            return Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return size of {@link Contact}'s avatar in pixel
+     */
+    final int getAvatarSize() {
+        return avatarSize;
+    }
+
+    /**
+     * @return true, if {@link Contact}'s avatars are shown
+     */
+    final boolean showAvatars() {
+        return useGridLayout || ConversationListActivity.showContactPhoto;
     }
 
     /**
-     * Start ConversationList query.
+     * Start ConversationList query. The list is loaded in pages around the shown conversations.
      */
     public final void startMsgListQuery() {
-        // Cancel any pending queries
-        queryHandler.cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
-        try {
-            // Kick off the new query
-            activity.setProgressBarIndeterminateVisibility(Boolean.TRUE);
-            queryHandler.startQuery(MESSAGE_LIST_QUERY_TOKEN, null, Conversation.URI_SIMPLE,
-                    Conversation.PROJECTION_SIMPLE, Conversation.COUNT + ">0", null, SORT);
-        } catch (SQLiteException e) {
-            Log.e(TAG, "error starting query", e);
+        // results of pending queries are dropped
+        final int generation = ++queryGeneration;
+        activity.setProgressBarIndeterminateVisibility(Boolean.TRUE);
+        final Cursor current = getCursor();
+        PagedConversationCursor.query(activity.getContentResolver(),
+                current instanceof PagedConversationCursor ? (PagedConversationCursor) current
+                        : null, new PagedConversationCursor.OnQueryCompleteListener() {
+                    @Override
+                    public void onQueryComplete(final Cursor cursor) {
+                        if (generation != queryGeneration) {
+                            if (cursor != null) {
+                                cursor.close();
+                            }
+                            return;
+                        }
+                        activity.setProgressBarIndeterminateVisibility(Boolean.FALSE);
+                        onMsgListQueryComplete(cursor);
+                    }
+                });
+    }
+
+    /**
+     * Show a new list. Nothing is done if it did not change. Changed conversations are refreshed,
+     * the list stays at the first shown conversation.
+     *
+     * @param cursor new list
+     */
+    private void onMsgListQueryComplete(final Cursor cursor) {
+        if (cursor instanceof PagedConversationCursor) {
+            final PagedConversationCursor c = (PagedConversationCursor) cursor;
+            if (c.isUnchanged() && getCursor() != null) {
+                Log.d(TAG, "list unchanged");
+                c.close();
+                return;
+            }
+            for (int threadId : c.getChangedThreads()) {
+                Conversation.invalidate(threadId);
+            }
+        }
+        // remember the first shown conversation unless the list is scrolled to the top
+        final AbsListView list = (AbsListView) activity.findViewById(android.R.id.list);
+        long anchor = -1L;
+        int top = 0;
+        if (list != null && list.getChildCount() > 0 && getCursor() != null) {
+            final int first = list.getFirstVisiblePosition();
+            top = list.getChildAt(0).getTop();
+            if (first > 0 || top < 0) {
+                anchor = getItemId(first);
+            }
+        }
+        live = true;
+        changeCursor(cursor);
+        if (anchor >= 0L && cursor instanceof PagedConversationCursor) {
+            final int position = ((PagedConversationCursor) cursor).getPosition(anchor);
+            if (position >= 0 && position != list.getFirstVisiblePosition()) {
+                if (list instanceof ListView) {
+                    ((ListView) list).setSelectionFromTop(position, top);
+                } else {
+                    list.setSelection(position);
+                }
+            }
         }
+        ConversationSnapshot.save(activity, cursor);
     }
 
     /*
@@ -243,9 +329,15 @@ public class ConversationAdapter extends ResourceCursorAdapter {
             holder.vRead = view.findViewById(R.id.read);
             view.setTag(holder);
         }
+        if (holder.threadId != c.getThreadId()) {
+            if (holder.threadId >= 0) {
+                // row was recycled, the old conversation is not shown anymore
+                AsyncHelper.cancel(holder.threadId);
+            }
+            holder.threadId = c.getThreadId();
+        }
 
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        if (useGridLayout || p.getBoolean(PreferencesActivity.PREFS_HIDE_MESSAGE_COUNT, false)) {
+        if (useGridLayout || PreferencesSnapshot.get(context).hideMessageCount) {
             holder.tvCount.setVisibility(View.GONE);
         } else {
             final int count = c.getCount();
@@ -268,8 +360,16 @@ public class ConversationAdapter extends ResourceCursorAdapter {
         }
 
         if (useGridLayout || ConversationListActivity.showContactPhoto) {
-            holder.ivPhoto.setImageDrawable(contact.getAvatar(activity,
-                    defaultContactAvatar));
+            final Bitmap avatar = AvatarCache.peek(contact, avatarSize);
+            if (avatar == null || avatar == Conversation.NO_PHOTO) {
+                holder.ivPhoto.setImageDrawable(defaultContactAvatar);
+            } else {
+                holder.ivPhoto.setImageBitmap(avatar);
+            }
+            if (avatar == null && !AvatarCache.isLoadedRecently(contact, avatarSize)) {
+                // evicted or not loaded yet, do not load avatars evicted right after loading
+                AsyncHelper.fillConversation(context, c, false, cursor.getPosition());
+            }
             holder.ivPhoto.setVisibility(View.VISIBLE);
             if (!useGridLayout) {
                 holder.ivPhoto.setOnClickListener(WRAPPER.getQuickContact(context, holder.ivPhoto,
@@ -279,10 +379,18 @@ public class ConversationAdapter extends ResourceCursorAdapter {
             holder.ivPhoto.setVisibility(View.GONE);
         }
 
-        if (isBlocked(contact.getNumber())) {
-            holder.tvPerson.setText("[" + contact.getDisplayName() + "]");
+        // texts are built in background, show the raw name and date until done
+        final ConversationRow row = ConversationRow.get(context, c);
+        String name = row == null ? contact.getDisplayName() : row.name;
+        final String address = ContactCache.getAddress(contact);
+        if (contact.getNumber() == null && address != null) {
+            // not resolved yet, the address was loaded with the other rows' addresses
+            name = address;
+        }
+        if (isBlocked(address)) {
+            holder.tvPerson.setText("[" + name + "]");
         } else {
-            holder.tvPerson.setText(contact.getDisplayName());
+            holder.tvPerson.setText(name);
         }
 
         // read status
@@ -292,22 +400,24 @@ public class ConversationAdapter extends ResourceCursorAdapter {
             holder.vRead.setVisibility(View.INVISIBLE);
         }
 
-        // body
-        CharSequence text = c.getBody();
-        if (text == null) {
-            text = context.getString(R.string.mms_conversation);
-        }
-        if (convertNCR) {
-            text = Converter.convertDecNCR2Char(text);
-        }
-        if (showEmoticons) {
-            text = SmileyParser.getInstance(context).addSmileySpans(text);
+        // body, left empty until built to not show unconverted NCR and emoticons
+        final CharSequence text = row == null ? null : row.body;
+        if (row == null || text == null && (!live || cursor instanceof PagedConversationCursor
+                && ((PagedConversationCursor) cursor).isLoading())) {
+            // not built yet, or a row of the snapshot or still loading without body
+            holder.tvBody.setText(null);
+        } else if (text == null) {
+            holder.tvBody.setText(R.string.mms_conversation);
+        } else {
+            holder.tvBody.setText(text);
         }
-        holder.tvBody.setText(text);
 
         // date
-        long time = c.getDate();
-        holder.tvDate.setText(ConversationListActivity.getDate(context, time));
+        if (row == null) {
+            holder.tvDate.setText(DateLabels.get(context, c.getDate()));
+        } else {
+            holder.tvDate.setText(row.dateLabel);
+        }
 
         // presence
         ImageView ivPresence = (ImageView) view.findViewById(R.id.presence);
@@ -325,15 +435,7 @@ public class ConversationAdapter extends ResourceCursorAdapter {
      * @param addr address
      * @return true if address is blocked
      */
-    private boolean isBlocked(final String addr) {
-        if (addr == null) {
-            return false;
-        }
-        for (String aBlacklist : blacklist) {
-            if (addr.equals(aBlacklist)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean isBlocked(final String addr) {
+        return SpamDB.peekBlacklisted(addr);
     }
 }
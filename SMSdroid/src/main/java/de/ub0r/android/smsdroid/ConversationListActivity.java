@@ -42,7 +42,6 @@ import android.provider.Telephony;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
-import android.text.format.DateFormat;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -56,8 +55,6 @@ import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import java.util.Calendar;
-
 import de.ub0r.android.lib.Utils;
 import de.ub0r.android.lib.apis.Contact;
 import de.ub0r.android.lib.apis.ContactsWrapper;
@@ -146,16 +143,6 @@ public final class ConversationListActivity extends AppCompatActivity implements
      */
     private ConversationAdapter adapter = null;
 
-    /**
-     * {@link Calendar} holding today 00:00.
-     */
-    private static final Calendar CAL_DAYAGO = Calendar.getInstance();
-
-    static {
-        // Get time for now - 24 hours
-        CAL_DAYAGO.add(Calendar.DAY_OF_MONTH, -1);
-    }
-
     private static final int PERMISSIONS_REQUEST_READ_SMS = 1;
 
     private static final int PERMISSIONS_REQUEST_READ_CONTACTS = 2;
@@ -176,6 +163,19 @@ public final class ConversationListActivity extends AppCompatActivity implements
     public void onStop() {
         super.onStop();
         AsyncHelper.setAdapter(null);
+        AsyncHelper.logStats();
+        Conversation.logCacheStats();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDestroy() {
+        if (adapter != null) {
+            adapter.close();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -287,6 +287,19 @@ public final class ConversationListActivity extends AppCompatActivity implements
         final AbsListView list = getListView();
         list.setOnItemClickListener(this);
         list.setOnItemLongClickListener(this);
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+                // nothing to do
+            }
+
+            @Override
+            public void onScroll(final AbsListView view, final int firstVisibleItem,
+                    final int visibleItemCount, final int totalItemCount) {
+                AsyncHelper.setVisibleRange(firstVisibleItem,
+                        firstVisibleItem + visibleItemCount - 1);
+            }
+        });
         longItemClickDialog = new String[WHICH_N];
         longItemClickDialog[WHICH_ANSWER] = getString(R.string.reply);
         longItemClickDialog[WHICH_CALL] = getString(R.string.call);
@@ -351,6 +364,7 @@ public final class ConversationListActivity extends AppCompatActivity implements
             return;
         }
 
+        ContactCache.init(this);
         adapter = new ConversationAdapter(this);
         setListAdapter(adapter);
         adapter.startMsgListQuery();
@@ -365,8 +379,8 @@ public final class ConversationListActivity extends AppCompatActivity implements
             initAdapter();
         }
 
-        CAL_DAYAGO.setTimeInMillis(System.currentTimeMillis());
-        CAL_DAYAGO.add(Calendar.DAY_OF_MONTH, -1);
+        // locale, time format or time zone may have changed
+        DateLabels.reset();
 
         final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(this);
         showContactPhoto = p.getBoolean(PreferencesActivity.PREFS_CONTACT_PHOTO, true);
@@ -443,11 +457,21 @@ public final class ConversationListActivity extends AppCompatActivity implements
         final ContentResolver cr = context.getContentResolver();
         final ContentValues cv = new ContentValues();
         cv.put(Message.PROJECTION[Message.INDEX_READ], read);
+        final int threadId = ConversationAdapter.getThreadId(uri);
         try {
+            if (read == 1 && threadId >= 0) {
+                UnreadIndex.beginChange();
+            }
             cr.update(uri, cv, Message.SELECTION_READ_UNREAD, sel);
+            if (read == 1 && threadId >= 0) {
+                UnreadIndex.onThreadRead(threadId);
+            } else {
+                UnreadIndex.invalidate();
+            }
         } catch (IllegalArgumentException | SQLiteException e) {
             Log.e(TAG, "failed update", e);
             Toast.makeText(context, e.getMessage(), Toast.LENGTH_LONG).show();
+            UnreadIndex.invalidate();
         }
         SmsReceiver.updateNewMessageNotification(context, null);
     }
@@ -480,6 +504,7 @@ public final class ConversationListActivity extends AppCompatActivity implements
                     if (ret > 0) {
                         Conversation.flushCache();
                         Message.flushCache();
+                        UnreadIndex.invalidate();
                         SmsReceiver.updateNewMessageNotification(context, null);
                     }
                 } catch (IllegalArgumentException e) {
@@ -502,7 +527,12 @@ public final class ConversationListActivity extends AppCompatActivity implements
      * @param addr    address
      */
     private static void addToOrRemoveFromSpamlist(final Context context, final String addr) {
-        SpamDB.toggleBlacklist(context, addr);
+        SpamDB.toggleBlacklist(context, addr, new Runnable() {
+            @Override
+            public void run() {
+                AsyncHelper.notifyAdapter();
+            }
+        });
     }
 
     /**
@@ -675,27 +705,4 @@ public final class ConversationListActivity extends AppCompatActivity implements
         builder.create().show();
         return true;
     }
-
-    /**
-     * Convert time into formated date.
-     *
-     * @param context {@link Context}
-     * @param time    time
-     * @return formated date.
-     */
-    static String getDate(final Context context, final long time) {
-        long t = time;
-        if (t < MIN_DATE) {
-            t *= MILLIS;
-        }
-        if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
-                PreferencesActivity.PREFS_FULL_DATE, false)) {
-            return DateFormat.getTimeFormat(context).format(t) + " "
-                    + DateFormat.getDateFormat(context).format(t);
-        } else if (t < CAL_DAYAGO.getTimeInMillis()) {
-            return DateFormat.getDateFormat(context).format(t);
-        } else {
-            return DateFormat.getTimeFormat(context).format(t);
-        }
-    }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * Texts shown for a single row of the conversation list. Rows are built in background and cached
+ * by thread id. A cached row is used as long as date, read status, contact and presence of a body
+ * of its {@link Conversation} and the kind of its date label are unchanged.
+ *
+ * @author flx
+ */
+final class ConversationRow {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "cor";
+
+    /**
+     * Number of cached rows.
+     */
+    private static final int CACHESIZE = 300;
+
+    /**
+     * Cached rows by thread id.
+     */
+    private static final LruCache<Integer, ConversationRow> CACHE = new LruCache<>(CACHESIZE);
+
+    /**
+     * Handler for the main thread.
+     */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Builds rows in background.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ConversationRow");
+        }
+    });
+
+    /**
+     * Pending {@link Conversation}s by thread id.
+     */
+    private static final LinkedHashMap<Integer, Conversation> PENDING = new LinkedHashMap<>();
+
+    /**
+     * {@link Context} for building pending rows.
+     */
+    private static Context pendingContext = null;
+
+    /**
+     * Is the background thread draining {@link #PENDING}?
+     */
+    private static boolean draining = false;
+
+    /**
+     * Convert NCR and show emoticons in new rows.
+     */
+    private static boolean convertNCR = false, showEmoticons = false;
+
+    /**
+     * Build pending rows.
+     */
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            boolean built = false;
+            while (true) {
+                final Context context;
+                final Conversation c;
+                final boolean ncr, emoticons;
+                synchronized (PENDING) {
+                    if (PENDING.isEmpty()) {
+                        draining = false;
+                        pendingContext = null;
+                        break;
+                    }
+                    c = PENDING.remove(PENDING.keySet().iterator().next());
+                    context = pendingContext;
+                    ncr = convertNCR;
+                    emoticons = showEmoticons;
+                }
+                final ConversationRow r = new ConversationRow(context, c, ncr, emoticons);
+                synchronized (PENDING) {
+                    // drop rows built with outdated settings
+                    if (ncr == convertNCR && emoticons == showEmoticons) {
+                        CACHE.put(r.threadId, r);
+                        built = true;
+                    }
+                }
+            }
+            if (built) {
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        AsyncHelper.notifyAdapter();
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * Thread id.
+     */
+    final int threadId;
+
+    /**
+     * State of the {@link Conversation} at the time of building.
+     */
+    private final ConversationRowKey key;
+
+    /**
+     * Contact's name.
+     */
+    final String name;
+
+    /**
+     * Body with converted NCR and emoticons, null for MMS.
+     */
+    final CharSequence body;
+
+    /**
+     * Formatted date.
+     */
+    final String dateLabel;
+
+    /**
+     * Build a row.
+     *
+     * @param context   {@link Context}
+     * @param c         {@link Conversation}
+     * @param ncr       convert NCR
+     * @param emoticons show emoticons as images
+     */
+    private ConversationRow(final Context context, final Conversation c, final boolean ncr,
+            final boolean emoticons) {
+        CharSequence text;
+        final long date;
+        final int read, contactsVersion;
+        synchronized (c) {
+            // date and body are updated together
+            threadId = c.getThreadId();
+            date = c.getDate();
+            read = c.getRead();
+            contactsVersion = c.getContactsVersion();
+            name = c.getContact().getDisplayName();
+            text = c.getBody();
+        }
+        if (text != null) {
+            if (ncr) {
+                text = Converter.convertDecNCR2Char(text);
+            }
+            if (emoticons) {
+                text = SmileyParser.getInstance(context).addSmileySpans(text);
+            }
+        }
+        body = text;
+        key = new ConversationRowKey(date, read, text != null, contactsVersion, name,
+                DateLabels.isRecent(date), PreferencesSnapshot.get(context).showFullDate);
+        dateLabel = DateLabels.get(context, date);
+    }
+
+    /**
+     * Check whether this row still shows a {@link Conversation}.
+     *
+     * @param context {@link Context}
+     * @param c       {@link Conversation}
+     * @return true, if nothing shown changed
+     */
+    private boolean matches(final Context context, final Conversation c) {
+        return key.matches(c.getDate(), c.getRead(), c.getBody() != null,
+                c.getContactsVersion(), c.getContact().getDisplayName(),
+                DateLabels.isRecent(key.getDate()),
+                PreferencesSnapshot.get(context).showFullDate);
+    }
+
+    /**
+     * Get the cached row of a {@link Conversation}. Missing or outdated rows are built in
+     * background, the adapter is notified when done. An outdated row still showing the same
+     * message is returned until then.
+     *
+     * @param context {@link Context}
+     * @param c       {@link Conversation}
+     * @return {@link ConversationRow} or null if not built yet
+     */
+    static ConversationRow get(final Context context, final Conversation c) {
+        final ConversationRow r = CACHE.get(c.getThreadId());
+        if (r != null && r.matches(context, c)) {
+            return r;
+        }
+        synchronized (PENDING) {
+            PENDING.put(c.getThreadId(), c);
+            if (pendingContext == null) {
+                pendingContext = context.getApplicationContext();
+            }
+            if (!draining) {
+                try {
+                    EXECUTOR.execute(DRAIN);
+                    draining = true;
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "rejected execution", e);
+                    PENDING.clear();
+                    pendingContext = null;
+                }
+            }
+        }
+        if (r != null && r.key.showsSameMessage(c.getDate(), c.getBody() != null)) {
+            // body did not change, only name, read status or date label may be outdated
+            return r;
+        }
+        return null;
+    }
+
+    /**
+     * Set how bodies of new rows are formatted. All rows are flushed if anything changed.
+     *
+     * @param ncr       convert NCR
+     * @param emoticons show emoticons as images
+     */
+    static void setFormat(final boolean ncr, final boolean emoticons) {
+        synchronized (PENDING) {
+            if (ncr == convertNCR && emoticons == showEmoticons) {
+                return;
+            }
+            convertNCR = ncr;
+            showEmoticons = emoticons;
+        }
+        flush();
+    }
+
+    /**
+     * Flush all cached rows.
+     */
+    static void flush() {
+        CACHE.evictAll();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+/**
+ * Everything a {@link ConversationRow} depends on. A cached row is valid as long as its key
+ * matches the current state of its {@link Conversation}.
+ *
+ * @author flx
+ */
+final class ConversationRowKey {
+
+    /**
+     * Date of the last message.
+     */
+    private final long date;
+
+    /**
+     * Read status.
+     */
+    private final int read;
+
+    /**
+     * Does the last message have a body?
+     */
+    private final boolean hasBody;
+
+    /**
+     * Contacts generation.
+     */
+    private final int contactsVersion;
+
+    /**
+     * Contact's name.
+     */
+    private final String name;
+
+    /**
+     * Is the date shown as time?
+     */
+    private final boolean recent;
+
+    /**
+     * Is the date shown as time and date?
+     */
+    private final boolean fullDate;
+
+    /**
+     * Default constructor.
+     *
+     * @param date            date of the last message
+     * @param read            read status
+     * @param hasBody         does the last message have a body?
+     * @param contactsVersion contacts generation
+     * @param name            contact's name
+     * @param recent          is the date shown as time?
+     * @param fullDate        is the date shown as time and date?
+     */
+    ConversationRowKey(final long date, final int read, final boolean hasBody,
+            final int contactsVersion, final String name, final boolean recent,
+            final boolean fullDate) {
+        this.date = date;
+        this.read = read;
+        this.hasBody = hasBody;
+        this.contactsVersion = contactsVersion;
+        this.name = name;
+        this.recent = recent;
+        this.fullDate = fullDate;
+    }
+
+    /**
+     * Check whether anything shown changed. Nothing is allocated, this runs on every bind.
+     *
+     * @param d  date of the last message
+     * @param r  read status
+     * @param b  does the last message have a body?
+     * @param cv contacts generation
+     * @param n  contact's name
+     * @param rc is the date shown as time?
+     * @param fd is the date shown as time and date?
+     * @return true, if nothing changed
+     */
+    boolean matches(final long d, final int r, final boolean b, final int cv, final String n,
+            final boolean rc, final boolean fd) {
+        return showsSameMessage(d, b) && read == r && contactsVersion == cv
+                && (name == null ? n == null : name.equals(n)) && recent == rc && fullDate == fd;
+    }
+
+    /**
+     * Check whether the row still shows the same message. Name, read status and date label may
+     * be outdated.
+     *
+     * @param d date of the last message
+     * @param b does the last message have a body?
+     * @return true, if the message is the same
+     */
+    boolean showsSameMessage(final long d, final boolean b) {
+        return date == d && hasBody == b;
+    }
+
+    /**
+     * @return date of the last message
+     */
+    long getDate() {
+        return date;
+    }
+}
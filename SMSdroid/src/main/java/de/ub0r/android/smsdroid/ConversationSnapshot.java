@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * Persisted copy of the top of the conversation list. It is shown while the real list is
+ * queried. Message bodies are not stored, the cache dir must not leak message content.
+ *
+ * @author flx
+ */
+final class ConversationSnapshot {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "cos";
+
+    /**
+     * Name of the snapshot file in the cache dir.
+     */
+    private static final String FILE = "conversations.snapshot";
+
+    /**
+     * Version of the file format.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Maximal number of conversations in the snapshot.
+     */
+    private static final int MAX_ROWS = 30;
+
+    /**
+     * Reads and writes the snapshot in background.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "ConversationSnapshot");
+        }
+    });
+
+    /**
+     * Handler for the main thread.
+     */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback for a loaded snapshot.
+     */
+    interface OnLoadedListener {
+
+        /**
+         * Called on the main thread.
+         *
+         * @param cursor snapshot with columns of {@link Conversation#PROJECTION_SIMPLE}
+         */
+        void onSnapshotLoaded(Cursor cursor);
+    }
+
+    /**
+     * Private constructor.
+     */
+    private ConversationSnapshot() {
+    }
+
+    /**
+     * @param context {@link Context}
+     * @return snapshot {@link File}
+     */
+    private static File getFile(final Context context) {
+        return new File(context.getCacheDir(), FILE);
+    }
+
+    /**
+     * Load the snapshot in background. Nothing is called if there is none.
+     *
+     * @param context  {@link Context}
+     * @param listener {@link OnLoadedListener}
+     */
+    static void load(final Context context, final OnLoadedListener listener) {
+        final File f = getFile(context);
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Cursor cursor = read(f);
+                    if (cursor != null) {
+                        HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onSnapshotLoaded(cursor);
+                            }
+                        });
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+        }
+    }
+
+    /**
+     * Read the snapshot.
+     *
+     * @param f {@link File}
+     * @return {@link Cursor} or null
+     */
+    private static Cursor read(final File f) {
+        if (!f.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != VERSION) {
+                // older versions hold message bodies
+                in.close();
+                in = null;
+                if (!f.delete()) {
+                    Log.w(TAG, "unable to delete old snapshot");
+                }
+                return null;
+            }
+            final int rows = in.readInt();
+            final int columns = Conversation.PROJECTION_SIMPLE.length;
+            final MatrixCursor ret = new MatrixCursor(Conversation.PROJECTION_SIMPLE, rows);
+            for (int i = 0; i < rows; i++) {
+                final Object[] row = new Object[columns];
+                for (int j = 0; j < columns; j++) {
+                    row[j] = in.readBoolean() ? in.readUTF() : null;
+                }
+                ret.addRow(row);
+            }
+            Log.d(TAG, "read snapshot: ", rows);
+            return ret;
+        } catch (IOException e) {
+            Log.e(TAG, "unable to read snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the top of a conversation list without message bodies. The rows are copied on the
+     * calling thread, the file is written in background.
+     *
+     * @param context {@link Context}
+     * @param cursor  {@link Cursor} with columns of {@link Conversation#PROJECTION_SIMPLE}
+     */
+    static void save(final Context context, final Cursor cursor) {
+        if (cursor == null || cursor.isClosed()) {
+            return;
+        }
+        final int columns = Conversation.PROJECTION_SIMPLE.length;
+        final ArrayList<String[]> rows = new ArrayList<>(MAX_ROWS);
+        final int position = cursor.getPosition();
+        if (cursor.moveToFirst()) {
+            do {
+                final String[] row = new String[columns];
+                for (int j = 0; j < columns; j++) {
+                    row[j] = j == Conversation.INDEX_SIMPLE_BODY ? null : cursor.getString(j);
+                }
+                rows.add(row);
+            } while (rows.size() < MAX_ROWS && cursor.moveToNext());
+        }
+        cursor.moveToPosition(position);
+        final File f = getFile(context);
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(f, rows);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+        }
+    }
+
+    /**
+     * Write the snapshot.
+     *
+     * @param f    {@link File}
+     * @param rows rows
+     */
+    private static void write(final File f, final ArrayList<String[]> rows) {
+        final File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+            for (String[] row : rows) {
+                for (String s : row) {
+                    out.writeBoolean(s != null);
+                    if (s != null) {
+                        out.writeUTF(s);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                Log.w(TAG, "unable to replace snapshot");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close stream", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.Context;
+
+import java.text.DateFormat;
+import java.util.TimeZone;
+
+/**
+ * Date labels shown in lists. Messages of the last 24 hours show their time, older ones their
+ * date. Labels are cached per minute or day, the formats are created once.
+ *
+ * @author flx
+ */
+final class DateLabels {
+
+    /**
+     * One minute.
+     */
+    private static final long MINUTE = 60L * 1000L;
+
+    /**
+     * One day.
+     */
+    private static final long DAY = 24L * 60L * MINUTE;
+
+    /**
+     * Number of cached labels per kind.
+     */
+    private static final int CACHESIZE = 256;
+
+    /**
+     * Time labels by minute.
+     */
+    private static final LongLruCache<String> TIMES = new LongLruCache<>(CACHESIZE);
+
+    /**
+     * Date labels by local day.
+     */
+    private static final LongLruCache<String> DATES = new LongLruCache<>(CACHESIZE);
+
+    /**
+     * Full labels by minute.
+     */
+    private static final LongLruCache<String> FULL = new LongLruCache<>(CACHESIZE);
+
+    /**
+     * Formats, null until first use.
+     */
+    private static DateFormat timeFormat = null, dateFormat = null;
+
+    /**
+     * Local time zone.
+     */
+    private static volatile TimeZone timeZone = null;
+
+    /**
+     * Private constructor.
+     */
+    private DateLabels() {
+    }
+
+    /**
+     * Convert time into formatted date. Synchronized with {@link #reset()}, a label formatted
+     * before a reset must not be cached after it.
+     *
+     * @param context {@link Context}
+     * @param time    time in milliseconds or seconds
+     * @return formatted date
+     */
+    static synchronized String get(final Context context, final long time) {
+        final long t = normalize(time);
+        final boolean full = PreferencesSnapshot.get(context).showFullDate;
+        final LongLruCache<String> cache;
+        final long key;
+        if (full) {
+            cache = FULL;
+            key = t / MINUTE;
+        } else if (isRecent(t)) {
+            cache = TIMES;
+            key = t / MINUTE;
+        } else {
+            cache = DATES;
+            key = getDay(t);
+        }
+        String ret = cache.get(key);
+        if (ret == null) {
+            ret = format(context, t, full, cache == TIMES);
+            cache.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Check if a time is shown as time rather than date.
+     *
+     * @param time time in milliseconds or seconds
+     * @return true, if the time is within the last 24 hours
+     */
+    static boolean isRecent(final long time) {
+        return normalize(time) >= System.currentTimeMillis() - DAY;
+    }
+
+    /**
+     * @param time time in milliseconds or seconds
+     * @return time in milliseconds
+     */
+    private static long normalize(final long time) {
+        if (time < ConversationListActivity.MIN_DATE) {
+            return time * ConversationListActivity.MILLIS;
+        }
+        return time;
+    }
+
+    /**
+     * Format a label. Called with the lock held.
+     *
+     * @param context {@link Context}
+     * @param t       time in milliseconds
+     * @param full    show time and date
+     * @param recent  show time only
+     * @return label
+     */
+    private static String format(final Context context, final long t,
+            final boolean full, final boolean recent) {
+        if (timeFormat == null) {
+            timeFormat = android.text.format.DateFormat.getTimeFormat(context);
+            dateFormat = android.text.format.DateFormat.getDateFormat(context);
+        }
+        if (full) {
+            return timeFormat.format(t) + " " + dateFormat.format(t);
+        } else if (recent) {
+            return timeFormat.format(t);
+        } else {
+            return dateFormat.format(t);
+        }
+    }
+
+    /**
+     * Get the local day of a time.
+     *
+     * @param t time in milliseconds
+     * @return days since epoch in the local time zone
+     */
+    private static long getDay(final long t) {
+        TimeZone tz = timeZone;
+        if (tz == null) {
+            tz = TimeZone.getDefault();
+            timeZone = tz;
+        }
+        return (t + tz.getOffset(t)) / DAY;
+    }
+
+    /**
+     * Drop cached formats and labels. Call it when locale, time format or time zone may have
+     * changed.
+     */
+    static synchronized void reset() {
+        timeFormat = null;
+        dateFormat = null;
+        timeZone = null;
+        TIMES.evictAll();
+        DATES.evictAll();
+        FULL.evictAll();
+    }
+}
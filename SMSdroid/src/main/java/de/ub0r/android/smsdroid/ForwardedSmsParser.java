@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+/**
+ * Parse messages sent by a forwarding agent. Such messages look like "sender: text". The sender
+ * is made of the characters 0-9, a-z, A-Z and +. The delimiter following it is configurable.
+ * <p/>
+ * Sender and text are extracted in a single pass without regular expressions.
+ *
+ * @author flx
+ */
+final class ForwardedSmsParser {
+
+    /**
+     * Parser for messages like "sender: text".
+     */
+    static final ForwardedSmsParser DEFAULT = new ForwardedSmsParser(':');
+
+    /**
+     * A parsed message.
+     */
+    static final class Result {
+
+        /**
+         * Original sender.
+         */
+        final String sender;
+
+        /**
+         * Text without the sender.
+         */
+        final String text;
+
+        /**
+         * Was the sender stripped from the text?
+         */
+        final boolean stripped;
+
+        /**
+         * Default constructor.
+         *
+         * @param sender   original sender
+         * @param text     text without the sender
+         * @param stripped was the sender stripped from the text?
+         */
+        Result(final String sender, final String text, final boolean stripped) {
+            this.sender = sender;
+            this.text = text;
+            this.stripped = stripped;
+        }
+    }
+
+    /**
+     * Delimiter following the sender.
+     */
+    private final char delimiter;
+
+    /**
+     * Default constructor.
+     *
+     * @param delimiter delimiter following the sender
+     */
+    ForwardedSmsParser(final char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Parse a message. The sender is the first run of sender characters followed by the
+     * delimiter. It is stripped from the text if the message starts with it, followed by the
+     * delimiter and a space. The text ends at the first line break then.
+     *
+     * @param text message
+     * @return {@link Result} or null if no sender was found
+     */
+    Result parse(final String text) {
+        if (text == null) {
+            return null;
+        }
+        final int l = text.length();
+        int start = -1;
+        for (int i = 0; i < l; i++) {
+            final char c = text.charAt(i);
+            if (isSenderChar(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (c == delimiter && start >= 0) {
+                return getResult(text, start, i);
+            } else {
+                start = -1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build the {@link Result} for a found sender.
+     *
+     * @param text  message
+     * @param start start of the sender
+     * @param end   end of the sender, position of the delimiter
+     * @return {@link Result}
+     */
+    private static Result getResult(final String text, final int start, final int end) {
+        final String sender = text.substring(start, end);
+        final int l = text.length();
+        if (start != 0 || end + 1 >= l || text.charAt(end + 1) != ' ') {
+            return new Result(sender, text, false);
+        }
+        int e = end + 2;
+        while (e < l && !isLineTerminator(text.charAt(e))) {
+            e++;
+        }
+        return new Result(sender, text.substring(end + 2, e), true);
+    }
+
+    /**
+     * @param c character
+     * @return true, if the character may be part of a sender
+     */
+    private static boolean isSenderChar(final char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '+';
+    }
+
+    /**
+     * @param c character
+     * @return true, if the character ends a line
+     */
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import java.util.Arrays;
+
+/**
+ * LRU cache with primitive long keys. Keys are stored in an open addressing hash table, entries
+ * live in preallocated arrays. Neither lookups nor inserts allocate.
+ * <p/>
+ * Besides the number of entries, the cache may be bound by the sum of its entries' weights. If it
+ * grows too heavy, entries marked as "evict first" are dropped before any other entry.
+ *
+ * @param <V> type of cached values
+ * @author flx
+ */
+final class LongLruCache<V> {
+
+    /**
+     * Marks an empty slot or the end of the LRU list.
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Maximal number of entries.
+     */
+    private final int maxSize;
+
+    /**
+     * Mask for indexing the hash table.
+     */
+    private final int mask;
+
+    /**
+     * Maximal sum of weights.
+     */
+    private long maxWeight;
+
+    /**
+     * Hash table: slot -> entry index.
+     */
+    private final int[] table;
+
+    /**
+     * Entry's key.
+     */
+    private final long[] keys;
+
+    /**
+     * Entry's value.
+     */
+    private final Object[] values;
+
+    /**
+     * Entry's weight.
+     */
+    private final long[] weights;
+
+    /**
+     * Should the entry be evicted before others?
+     */
+    private final boolean[] evictFirst;
+
+    /**
+     * Entry's previous (more recently used) entry.
+     */
+    private final int[] prev;
+
+    /**
+     * Entry's next (less recently used) entry, or next free entry.
+     */
+    private final int[] next;
+
+    /**
+     * Most recently used entry.
+     */
+    private int head = NONE;
+
+    /**
+     * Least recently used entry.
+     */
+    private int tail = NONE;
+
+    /**
+     * First unused entry.
+     */
+    private int free;
+
+    /**
+     * Number of entries.
+     */
+    private int size = 0;
+
+    /**
+     * Sum of all entries' weights.
+     */
+    private long weight = 0L;
+
+    /**
+     * Default constructor.
+     *
+     * @param maxSize maximal number of entries
+     */
+    LongLruCache(final int maxSize) {
+        this(maxSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor for a weighted cache.
+     *
+     * @param maxSize   maximal number of entries
+     * @param maxWeight maximal sum of weights
+     */
+    LongLruCache(final int maxSize, final long maxWeight) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        // keep the load factor of the hash table below 0.5
+        final int tableSize = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+        mask = tableSize - 1;
+        table = new int[tableSize];
+        Arrays.fill(table, NONE);
+        keys = new long[maxSize];
+        values = new Object[maxSize];
+        weights = new long[maxSize];
+        evictFirst = new boolean[maxSize];
+        prev = new int[maxSize];
+        next = new int[maxSize];
+        for (int i = 0; i < maxSize; i++) {
+            next[i] = i + 1 < maxSize ? i + 1 : NONE;
+        }
+        free = 0;
+    }
+
+    /**
+     * Spread the key's bits over the table's index.
+     *
+     * @param key key
+     * @return hash
+     */
+    private static int hash(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Find the slot holding a key.
+     *
+     * @param key key
+     * @return slot or {@link #NONE}
+     */
+    private int findSlot(final long key) {
+        int i = hash(key) & mask;
+        while (table[i] != NONE) {
+            if (keys[table[i]] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Get a value and mark it as recently used.
+     *
+     * @param key key
+     * @return value or null
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V get(final long key) {
+        final int slot = findSlot(key);
+        if (slot == NONE) {
+            return null;
+        }
+        final int e = table[slot];
+        unlink(e);
+        linkFirst(e);
+        return (V) values[e];
+    }
+
+    /**
+     * Put a value into the cache. The least recently used entry is evicted if the cache is full.
+     *
+     * @param key   key
+     * @param value value
+     */
+    void put(final long key, final V value) {
+        put(key, value, 0L, false);
+    }
+
+    /**
+     * Put a weighted value into the cache. The least recently used entry is evicted if the cache
+     * is full. Entries are evicted until the cache's weight is within its bounds again.
+     *
+     * @param key   key
+     * @param value value
+     * @param w     value's weight
+     * @param heavy evict this entry before entries not marked as heavy
+     */
+    synchronized void put(final long key, final V value, final long w, final boolean heavy) {
+        final int slot = findSlot(key);
+        int e;
+        if (slot != NONE) {
+            e = table[slot];
+            weight -= weights[e];
+            unlink(e);
+        } else {
+            if (size == maxSize) {
+                removeEntry(tail);
+            }
+            e = free;
+            free = next[e];
+            keys[e] = key;
+            int i = hash(key) & mask;
+            while (table[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            table[i] = e;
+            ++size;
+        }
+        values[e] = value;
+        weights[e] = w;
+        evictFirst[e] = heavy;
+        weight += w;
+        linkFirst(e);
+        trimToWeight();
+    }
+
+    /**
+     * Set the maximal sum of weights.
+     *
+     * @param w maximal weight
+     */
+    synchronized void setMaxWeight(final long w) {
+        maxWeight = w;
+        trimToWeight();
+    }
+
+    /**
+     * Evict entries until the sum of weights is within bounds. Least recently used heavy entries
+     * go first.
+     */
+    private void trimToWeight() {
+        while (weight > maxWeight && tail != NONE) {
+            int e = tail;
+            while (e != NONE && !evictFirst[e]) {
+                e = prev[e];
+            }
+            removeEntry(e == NONE ? tail : e);
+        }
+    }
+
+    /**
+     * Remove a value from the cache.
+     *
+     * @param key key
+     */
+    synchronized void remove(final long key) {
+        final int slot = findSlot(key);
+        if (slot != NONE) {
+            removeEntry(table[slot]);
+        }
+    }
+
+    /**
+     * Remove all values from the cache.
+     */
+    synchronized void evictAll() {
+        while (tail != NONE) {
+            removeEntry(tail);
+        }
+    }
+
+    /**
+     * @return number of cached values
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return sum of all cached values' weights
+     */
+    synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * Remove an entry from hash table and LRU list.
+     *
+     * @param e entry
+     */
+    private void removeEntry(final int e) {
+        deleteSlot(findSlot(keys[e]));
+        unlink(e);
+        values[e] = null;
+        weight -= weights[e];
+        weights[e] = 0L;
+        next[e] = free;
+        free = e;
+        --size;
+    }
+
+    /**
+     * Clear a slot and shift following entries of the same probe sequence back.
+     *
+     * @param slot slot
+     */
+    private void deleteSlot(final int slot) {
+        int i = slot;
+        int j = slot;
+        table[i] = NONE;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == NONE) {
+                return;
+            }
+            final int k = hash(keys[table[j]]) & mask;
+            // keep the entry if its home slot lies cyclically in (i, j]
+            if (i <= j ? i < k && k <= j : i < k || k <= j) {
+                continue;
+            }
+            table[i] = table[j];
+            table[j] = NONE;
+            i = j;
+        }
+    }
+
+    /**
+     * Insert entry at the head of the LRU list.
+     *
+     * @param e entry
+     */
+    private void linkFirst(final int e) {
+        prev[e] = NONE;
+        next[e] = head;
+        if (head != NONE) {
+            prev[head] = e;
+        }
+        head = e;
+        if (tail == NONE) {
+            tail = e;
+        }
+    }
+
+    /**
+     * Remove entry from the LRU list.
+     *
+     * @param e entry
+     */
+    private void unlink(final int e) {
+        if (prev[e] != NONE) {
+            next[prev[e]] = next[e];
+        } else {
+            head = next[e];
+        }
+        if (next[e] != NONE) {
+            prev[next[e]] = prev[e];
+        } else {
+            tail = prev[e];
+        }
+    }
+}
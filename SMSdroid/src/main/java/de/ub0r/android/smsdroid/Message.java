@@ -31,6 +31,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.provider.CallLog.Calls;
 import android.view.View;
@@ -43,7 +44,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedHashMap;
 
 import de.ub0r.android.logg0r.Log;
 
@@ -75,11 +75,26 @@ public final class Message {
     private static final int CAHCESIZE = 50;
 
     /**
-     * Internal Cache.
+     * Default size of the cache in bytes.
      */
-    private static final LinkedHashMap<Integer, Message> CACHE
-            = new LinkedHashMap<>(
-            26, 0.9f, true);
+    private static final long CACHE_BYTES = 8L * 1024L * 1024L;
+
+    /**
+     * Part of the heap used for caching messages.
+     */
+    private static final int CACHE_HEAP_FRACTION = 8;
+
+    /**
+     * Estimated size of a {@link Message} without body and picture.
+     */
+    private static final int BYTES_OVERHEAD = 256;
+
+    /**
+     * Internal Cache, keyed by {@link #getCacheKey(boolean, long)}, weighted by
+     * {@link #getByteCount()}.
+     */
+    private static final LongLruCache<Message> CACHE = new LongLruCache<>(CAHCESIZE,
+            CACHE_BYTES);
 
     /**
      * INDEX: id.
@@ -530,40 +545,84 @@ public final class Message {
      * @return {@link Message}
      */
     public static Message getMessage(final Context context, final Cursor cursor) {
-        synchronized (CACHE) {
-            String body = cursor.getString(INDEX_BODY);
-            int id = cursor.getInt(INDEX_ID);
-            if (body == null) { // MMS
-                id *= -1;
-            }
-            Message ret = CACHE.get(id);
-            if (ret == null) {
-                ret = new Message(context, cursor);
-                CACHE.put(id, ret);
-                Log.d(TAG, "cachesize: ", CACHE.size());
-                while (CACHE.size() > CAHCESIZE) {
-                    Integer i = CACHE.keySet().iterator().next();
-                    Log.d(TAG, "rm msg. from cache: ", i);
-                    Message cc = CACHE.remove(i);
-                    if (cc == null) {
-                        Log.w(TAG, "CACHE might be inconsistent!");
-                        break;
-                    }
-                }
-            } else {
-                ret.update(cursor);
-            }
-            return ret;
+        // MMS have no body in the joined cursor
+        final long key = getCacheKey(cursor.isNull(INDEX_BODY), cursor.getLong(INDEX_ID));
+        Message ret = CACHE.get(key);
+        if (ret == null) {
+            // parts are loaded without holding the cache's lock
+            ret = new Message(context, cursor);
+            // messages holding decoded pictures are dropped first when memory gets tight
+            CACHE.put(key, ret, ret.getByteCount(), ret.hasDecodedPicture());
+            Log.d(TAG, "cachesize: ", CACHE.size(), ", bytes: ", CACHE.weight());
+        } else {
+            ret.update(cursor);
         }
+        return ret;
+    }
+
+    /**
+     * Get the key for the internal cache. SMS and MMS have separate id spaces.
+     *
+     * @param mms is the message a MMS?
+     * @param id  message's id
+     * @return key
+     */
+    private static long getCacheKey(final boolean mms, final long id) {
+        return id << 1 | (mms ? 1L : 0L);
     }
 
     /**
      * Flush all cached messages.
      */
     public static void flushCache() {
-        synchronized (CACHE) {
-            CACHE.clear();
+        CACHE.evictAll();
+    }
+
+    /**
+     * Set the memory budget of the internal cache.
+     *
+     * @param bytes maximal size of all cached messages in bytes
+     */
+    static void setCacheBudget(final long bytes) {
+        Log.i(TAG, "cache budget: ", bytes);
+        CACHE.setMaxWeight(bytes);
+    }
+
+    /**
+     * Set the memory budget of the internal cache according to the device's memory class.
+     *
+     * @param memoryClass memory class in MB
+     */
+    static void setCacheBudgetByMemoryClass(final int memoryClass) {
+        setCacheBudget(memoryClass * 1024L * 1024L / CACHE_HEAP_FRACTION);
+    }
+
+    /**
+     * @return true, if this message holds a picture decoded from its parts
+     */
+    private boolean hasDecodedPicture() {
+        return picture != null && picture != BITMAP_PLAY;
+    }
+
+    /**
+     * Estimate the memory used by this message.
+     *
+     * @return size in bytes
+     */
+    @SuppressWarnings("NewApi")
+    private long getByteCount() {
+        long ret = BYTES_OVERHEAD;
+        if (body != null) {
+            ret += 2L * body.length();
         }
+        if (hasDecodedPicture()) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                ret += picture.getAllocationByteCount();
+            } else {
+                ret += picture.getByteCount();
+            }
+        }
+        return ret;
     }
 
     /**
@@ -295,7 +295,7 @@ public class MessageAdapter extends ResourceCursorAdapter {
         }
 
         final long time = m.getDate();
-        holder.tvDate.setText(ConversationListActivity.getDate(context, time));
+        holder.tvDate.setText(DateLabels.get(context, time));
 
         final Bitmap pic = m.getPicture();
         if (pic != null) {
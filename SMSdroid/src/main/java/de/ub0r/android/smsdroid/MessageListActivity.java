@@ -350,11 +350,7 @@ public class MessageListActivity extends AppCompatActivity implements OnItemClic
         }
 
         final Contact contact = conv.getContact();
-        try {
-            contact.update(this, false, true);
-        } catch (NullPointerException e) {
-            Log.e(TAG, "updating contact failed", e);
-        }
+        ContactCache.resolve(this, contact, true);
         boolean showKeyboard = intent.getBooleanExtra("showKeyboard", false);
 
         Log.d(TAG, "address: ", contact.getNumber());
@@ -496,6 +492,8 @@ public class MessageListActivity extends AppCompatActivity implements OnItemClic
         super.onResume();
 
         mAdView.resume();
+        // locale, time format or time zone may have changed
+        DateLabels.reset();
         final ListView lv = getListView();
         lv.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_ALWAYS_SCROLL);
         lv.setAdapter(new MessageAdapter(this, uri));
@@ -1,7 +1,6 @@
 package de.ub0r.android.smsdroid;
 
 import android.content.Context;
-import android.preference.PreferenceManager;
 import android.telephony.SmsMessage;
 import android.text.ClipboardManager;
 import android.text.Editable;
@@ -48,9 +47,7 @@ public final class MyTextWatcher implements TextWatcher {
     public void afterTextChanged(final Editable s) {
         final int len = s.length();
         if (len == 0) {
-            if (cbmgr.hasText()
-                    && !PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
-                    PreferencesActivity.PREFS_HIDE_PASTE, false)) {
+            if (cbmgr.hasText() && !PreferencesSnapshot.get(context).hidePaste) {
                 tvPaste.setVisibility(View.VISIBLE);
             } else {
                 tvPaste.setVisibility(View.GONE);
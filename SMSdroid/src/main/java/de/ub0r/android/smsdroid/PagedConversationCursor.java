@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * {@link Cursor} over the conversation list, loaded in pages. Only ids, dates, read status and
+ * counts of all conversations are held in memory. Rows are loaded page by page around the current
+ * position, pages far away from it are dropped. Rows of pages not loaded yet hold the values of the
+ * list only, the adapter is notified once the page is loaded.
+ * <p/>
+ * A new list is compared to the previous one. Rows of unchanged conversations are taken over
+ * instead of being queried again.
+ *
+ * @author flx
+ */
+final class PagedConversationCursor extends AbstractCursor {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "pcc";
+
+    /**
+     * Number of rows per page.
+     */
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * Projection of the list of all conversations.
+     */
+    private static final String[] PROJECTION_LIST = {Conversation.ID, Conversation.DATE,
+            Conversation.READ, Conversation.COUNT};
+
+    /**
+     * Number of pages kept on each side of the current page.
+     */
+    private static final int KEEP_PAGES = 2;
+
+    /**
+     * Runs queries in background.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "PagedConversationCursor");
+        }
+    });
+
+    /**
+     * Handler for the main thread.
+     */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback for a completed query.
+     */
+    interface OnQueryCompleteListener {
+
+        /**
+         * Called on the main thread.
+         *
+         * @param cursor {@link PagedConversationCursor} or null if the query failed
+         */
+        void onQueryComplete(Cursor cursor);
+    }
+
+    /**
+     * {@link ContentResolver}.
+     */
+    private final ContentResolver cr;
+
+    /**
+     * Ids of all conversations in list order.
+     */
+    private final long[] ids;
+
+    /**
+     * Dates of all conversations in list order.
+     */
+    private final long[] dates;
+
+    /**
+     * Read status of all conversations in list order.
+     */
+    private final int[] reads;
+
+    /**
+     * Message counts of all conversations in list order.
+     */
+    private final int[] counts;
+
+    /**
+     * Rows taken over from the previous list by thread id.
+     */
+    private final SparseArray<Object[]> carried = new SparseArray<>();
+
+    /**
+     * Is the list equal to the previous one?
+     */
+    private boolean unchanged = false;
+
+    /**
+     * Thread ids of conversations added or changed since the previous list.
+     */
+    private int[] changed = new int[0];
+
+    /**
+     * Loaded pages by page number.
+     */
+    private final SparseArray<Object[][]> pages = new SparseArray<>();
+
+    /**
+     * Pages queued for loading, true if the adapter is notified once loaded.
+     */
+    private final SparseBooleanArray queued = new SparseBooleanArray();
+
+    /**
+     * Current page.
+     */
+    private volatile int currentPage = -1;
+
+    /**
+     * Current row.
+     */
+    private Object[] row = null;
+
+    /**
+     * Is the current row's page not loaded yet?
+     */
+    private boolean loading = false;
+
+    /**
+     * Default constructor.
+     *
+     * @param cr     {@link ContentResolver}
+     * @param length number of conversations
+     */
+    private PagedConversationCursor(final ContentResolver cr, final int length) {
+        this.cr = cr;
+        ids = new long[length];
+        dates = new long[length];
+        reads = new int[length];
+        counts = new int[length];
+    }
+
+    /**
+     * Query the conversation list in background.
+     *
+     * @param cr       {@link ContentResolver}
+     * @param previous previous list, may be null
+     * @param listener {@link OnQueryCompleteListener}
+     */
+    static void query(final ContentResolver cr, final PagedConversationCursor previous,
+            final OnQueryCompleteListener listener) {
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Cursor ret = query(cr, previous);
+                    HANDLER.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onQueryComplete(ret);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+        }
+    }
+
+    /**
+     * Query all conversations, compare them to the previous list and load the first page.
+     *
+     * @param cr       {@link ContentResolver}
+     * @param previous previous list, may be null
+     * @return {@link PagedConversationCursor} or null
+     */
+    private static PagedConversationCursor query(final ContentResolver cr,
+            final PagedConversationCursor previous) {
+        final PagedConversationCursor ret;
+        try {
+            final Cursor cursor = cr.query(Conversation.URI_SIMPLE, PROJECTION_LIST,
+                    Conversation.COUNT + ">0", null, ConversationAdapter.SORT);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                ret = new PagedConversationCursor(cr, cursor.getCount());
+                int i = 0;
+                while (cursor.moveToNext() && i < ret.ids.length) {
+                    ret.ids[i] = cursor.getLong(0);
+                    ret.dates[i] = cursor.getLong(1);
+                    ret.reads[i] = cursor.getInt(2);
+                    ret.counts[i] = cursor.getInt(3);
+                    ++i;
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException | SecurityException e) {
+            Log.e(TAG, "error getting conversations", e);
+            return null;
+        }
+        if (previous != null) {
+            ret.diff(previous);
+        }
+        Log.d(TAG, "conversations: ", ret.ids.length, " changed: ", ret.changed.length,
+                " carried: ", ret.carried.size());
+        ret.getPage(0);
+        return ret;
+    }
+
+    /**
+     * Compare with the previous list. Take over loaded rows of unchanged conversations.
+     *
+     * @param previous previous list
+     */
+    private void diff(final PagedConversationCursor previous) {
+        unchanged = Arrays.equals(ids, previous.ids) && Arrays.equals(dates, previous.dates)
+                && Arrays.equals(reads, previous.reads) && Arrays.equals(counts, previous.counts);
+        if (unchanged) {
+            return;
+        }
+        final SparseIntArray positions = new SparseIntArray(previous.ids.length);
+        for (int i = 0; i < previous.ids.length; i++) {
+            positions.put((int) previous.ids[i], i);
+        }
+        final int[] c = new int[ids.length];
+        int l = 0;
+        synchronized (previous.pages) {
+            for (int i = 0; i < ids.length; i++) {
+                final int j = positions.get((int) ids[i], -1);
+                if (j < 0 || dates[i] != previous.dates[j] || counts[i] != previous.counts[j]) {
+                    c[l] = (int) ids[i];
+                    ++l;
+                } else if (reads[i] == previous.reads[j]) {
+                    final Object[][] page = previous.pages.get(j / PAGE_SIZE);
+                    if (page != null) {
+                        carried.put((int) ids[i], page[j % PAGE_SIZE]);
+                    }
+                }
+            }
+        }
+        changed = Arrays.copyOf(c, l);
+    }
+
+    /**
+     * @return true, if the list is equal to the previous one
+     */
+    boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return thread ids of conversations added or changed since the previous list
+     */
+    int[] getChangedThreads() {
+        return changed;
+    }
+
+    /**
+     * Find a conversation's position.
+     *
+     * @param id conversation id
+     * @return position or -1
+     */
+    int getPosition(final long id) {
+        return indexOf(id, 0, ids.length);
+    }
+
+    @Override
+    public int getCount() {
+        return ids.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return Conversation.PROJECTION_SIMPLE;
+    }
+
+    /**
+     * @return true, if the current row's page is not loaded yet
+     */
+    boolean isLoading() {
+        return loading;
+    }
+
+    @Override
+    public boolean onMove(final int oldPosition, final int newPosition) {
+        final int p = newPosition / PAGE_SIZE;
+        final Object[][] page;
+        synchronized (pages) {
+            page = pages.get(p);
+        }
+        if (page == null) {
+            // never query on the main thread
+            row = newRow(newPosition);
+            loading = true;
+            loadInBackground(p, true);
+        } else {
+            row = page[newPosition % PAGE_SIZE];
+            loading = false;
+        }
+        if (p != currentPage) {
+            currentPage = p;
+            dropPages(p);
+            prefetch(p);
+        }
+        return true;
+    }
+
+    /**
+     * Get a page, load it if needed. Do not call from the main thread.
+     *
+     * @param p page number
+     * @return rows of the page
+     */
+    private Object[][] getPage(final int p) {
+        synchronized (pages) {
+            final Object[][] page = pages.get(p);
+            if (page != null) {
+                return page;
+            }
+        }
+        final Object[][] page = loadPage(p);
+        synchronized (pages) {
+            pages.put(p, page);
+        }
+        return page;
+    }
+
+    /**
+     * Load the pages next to the current one in background.
+     *
+     * @param p current page
+     */
+    private void prefetch(final int p) {
+        for (int i = p - 1; i <= p + 1; i += 2) {
+            if (i >= 0 && i * PAGE_SIZE < ids.length) {
+                loadInBackground(i, false);
+            }
+        }
+    }
+
+    /**
+     * Load a page in background unless it is loaded or queued already.
+     *
+     * @param p      page number
+     * @param notify notify the adapter once the page is loaded
+     */
+    private void loadInBackground(final int p, final boolean notify) {
+        synchronized (pages) {
+            if (pages.get(p) != null) {
+                return;
+            }
+            final boolean isQueued = queued.indexOfKey(p) >= 0;
+            queued.put(p, notify || queued.get(p));
+            if (isQueued) {
+                return;
+            }
+        }
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean load = !isClosed() && Math.abs(currentPage - p) <= KEEP_PAGES;
+                    if (load) {
+                        getPage(p);
+                    }
+                    final boolean n;
+                    synchronized (pages) {
+                        n = queued.get(p);
+                        queued.delete(p);
+                    }
+                    if (load && n) {
+                        HANDLER.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!isClosed()) {
+                                    AsyncHelper.notifyAdapter();
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+            synchronized (pages) {
+                queued.delete(p);
+            }
+        }
+    }
+
+    /**
+     * Drop pages far away from the current one.
+     *
+     * @param p current page
+     */
+    private void dropPages(final int p) {
+        synchronized (pages) {
+            for (int i = pages.size() - 1; i >= 0; --i) {
+                if (Math.abs(pages.keyAt(i) - p) > KEEP_PAGES) {
+                    pages.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a page.
+     *
+     * @param p page number
+     * @return rows of the page
+     */
+    private Object[][] loadPage(final int p) {
+        final int start = p * PAGE_SIZE;
+        final int end = Math.min(start + PAGE_SIZE, ids.length);
+        final int columns = Conversation.PROJECTION_SIMPLE.length;
+        final Object[][] ret = new Object[end - start][];
+        final StringBuilder sel = new StringBuilder(Conversation.ID).append(" IN (");
+        boolean missing = false;
+        for (int i = start; i < end; i++) {
+            final Object[] r = carried.get((int) ids[i]);
+            if (r != null) {
+                ret[i - start] = r;
+                continue;
+            }
+            if (missing) {
+                sel.append(',');
+            }
+            missing = true;
+            sel.append(ids[i]);
+            // rows of deleted conversations keep the values of the list
+            ret[i - start] = newRow(i);
+        }
+        if (!missing) {
+            Log.d(TAG, "took over page: ", p);
+            return ret;
+        }
+        sel.append(')');
+        Cursor cursor = null;
+        try {
+            cursor = cr.query(Conversation.URI_SIMPLE, Conversation.PROJECTION_SIMPLE,
+                    sel.toString(), null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final int i = indexOf(cursor.getLong(Conversation.INDEX_SIMPLE_ID), start, end);
+                if (i < 0 || ret[i - start] == carried.get((int) ids[i])) {
+                    continue;
+                }
+                final Object[] r = ret[i - start];
+                for (int j = 0; j < columns; j++) {
+                    switch (cursor.getType(j)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            r[j] = cursor.getLong(j);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            r[j] = cursor.getDouble(j);
+                            break;
+                        case Cursor.FIELD_TYPE_NULL:
+                            r[j] = null;
+                            break;
+                        default:
+                            r[j] = cursor.getString(j);
+                            break;
+                    }
+                }
+            }
+        } catch (SQLiteException | SecurityException e) {
+            Log.e(TAG, "error loading page: ", p, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "loaded page: ", p);
+        return ret;
+    }
+
+    /**
+     * Create a row holding the values of the list only.
+     *
+     * @param i position
+     * @return row without recipient and body
+     */
+    private Object[] newRow(final int i) {
+        final Object[] ret = new Object[Conversation.PROJECTION_SIMPLE.length];
+        ret[Conversation.INDEX_SIMPLE_ID] = ids[i];
+        ret[Conversation.INDEX_SIMPLE_DATE] = dates[i];
+        ret[Conversation.INDEX_SIMPLE_READ] = (long) reads[i];
+        ret[Conversation.INDEX_SIMPLE_COUNT] = (long) counts[i];
+        return ret;
+    }
+
+    /**
+     * Find a conversation's position.
+     *
+     * @param id    conversation id
+     * @param start first position to search
+     * @param end   position after the last position to search
+     * @return position or -1
+     */
+    private int indexOf(final long id, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (pages) {
+            pages.clear();
+        }
+    }
+
+    @Override
+    public int getType(final int column) {
+        final Object o = row[column];
+        if (o == null) {
+            return FIELD_TYPE_NULL;
+        } else if (o instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (o instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else {
+            return FIELD_TYPE_STRING;
+        }
+    }
+
+    @Override
+    public String getString(final int column) {
+        final Object o = row[column];
+        return o == null ? null : o.toString();
+    }
+
+    @Override
+    public short getShort(final int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(final int column) {
+        final Object o = row[column];
+        if (o == null) {
+            return 0L;
+        } else if (o instanceof Number) {
+            return ((Number) o).longValue();
+        }
+        try {
+            return Long.parseLong(o.toString());
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    @Override
+    public float getFloat(final int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(final int column) {
+        final Object o = row[column];
+        if (o == null) {
+            return 0d;
+        } else if (o instanceof Number) {
+            return ((Number) o).doubleValue();
+        }
+        try {
+            return Double.parseDouble(o.toString());
+        } catch (NumberFormatException e) {
+            return 0d;
+        }
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return row[column] == null;
+    }
+}
@@ -73,17 +73,17 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
     /**
      * Preference's name: led color.
      */
-    private static final String PREFS_LED_COLOR = "receive_led_color";
+    static final String PREFS_LED_COLOR = "receive_led_color";
 
     /**
      * Preference's name: led flash.
      */
-    private static final String PREFS_LED_FLASH = "receive_led_flash";
+    static final String PREFS_LED_FLASH = "receive_led_flash";
 
     /**
      * Preference's name: vibrator pattern.
      */
-    private static final String PREFS_VIBRATOR_PATTERN = "receive_vibrate_mode";
+    static final String PREFS_VIBRATOR_PATTERN = "receive_vibrate_mode";
 
     /**
      * Preference's name: enable notifications.
@@ -98,7 +98,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
     /**
      * Preference's name: icon for notifications.
      */
-    private static final String PREFS_NOTIFICATION_ICON = "notification_icon";
+    static final String PREFS_NOTIFICATION_ICON = "notification_icon";
 
     /**
      * Prefernece's name: show contact's photo.
@@ -113,12 +113,12 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
     /**
      * Preference's name: bubbles for incoming messages.
      */
-    private static final String PREFS_BUBBLES_IN = "bubbles_in";
+    static final String PREFS_BUBBLES_IN = "bubbles_in";
 
     /**
      * Preference's name: bubbles for outgoing messages.
      */
-    private static final String PREFS_BUBBLES_OUT = "bubbles_out";
+    static final String PREFS_BUBBLES_OUT = "bubbles_out";
 
     /**
      * Preference's name: show full date and time.
@@ -158,27 +158,27 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
     /**
      * Preference's name: theme.
      */
-    private static final String PREFS_THEME = "theme";
+    static final String PREFS_THEME = "theme";
 
     /**
      * Theme: black.
      */
-    private static final String THEME_BLACK = "black";
+    static final String THEME_BLACK = "black";
 
     /**
      * Preference's name: text size.
      */
-    private static final String PREFS_TEXTSIZE = "textsizen";
+    static final String PREFS_TEXTSIZE = "textsizen";
 
     /**
      * Preference's name: text color.
      */
-    private static final String PREFS_TEXTCOLOR = "textcolor";
+    static final String PREFS_TEXTCOLOR = "textcolor";
 
     /**
      * Preference's name: ignore text color for list ov threads.
      */
-    private static final String PREFS_TEXTCOLOR_IGNORE_CONV = "text_color_ignore_conv";
+    static final String PREFS_TEXTCOLOR_IGNORE_CONV = "text_color_ignore_conv";
 
     /**
      * Preference's name: enable autosend.
@@ -500,13 +500,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return theme
      */
     static int getTheme(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final String s = p.getString(PREFS_THEME, null);
-        if (s != null && THEME_BLACK.equals(s)) {
-            return R.style.Theme_SMSdroid;
-        } else {
-            return R.style.Theme_SMSdroid_Light;
-        }
+        return PreferencesSnapshot.get(context).theme;
     }
 
     /**
@@ -516,10 +510,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return theme
      */
     static int getTextsize(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final String s = p.getString(PREFS_TEXTSIZE, null);
-        Log.d(TAG, "text size: ", s);
-        return Utils.parseInt(s, 0);
+        return PreferencesSnapshot.get(context).textSize;
     }
 
     /**
@@ -529,14 +520,11 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return theme
      */
     static int getTextcolor(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        if (context instanceof ConversationListActivity
-                && p.getBoolean(PREFS_TEXTCOLOR_IGNORE_CONV, false)) {
+        final PreferencesSnapshot p = PreferencesSnapshot.get(context);
+        if (context instanceof ConversationListActivity && p.textColorIgnoreConv) {
             return 0;
         }
-        final int ret = p.getInt(PREFS_TEXTCOLOR, 0);
-        Log.d(TAG, "text color: ", ret);
-        return ret;
+        return p.textColor;
     }
 
     /**
@@ -546,9 +534,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return pattern
      */
     static int getLEDcolor(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final String s = p.getString(PREFS_LED_COLOR, "65280");
-        return Integer.parseInt(s);
+        return PreferencesSnapshot.get(context).ledColor;
     }
 
     /**
@@ -558,13 +544,8 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return pattern
      */
     static int[] getLEDflash(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final String s = p.getString(PREFS_LED_FLASH, "500_2000");
-        final String[] ss = s.split("_");
-        final int[] ret = new int[2];
-        ret[0] = Integer.parseInt(ss[0]);
-        ret[1] = Integer.parseInt(ss[1]);
-        return ret;
+        final PreferencesSnapshot p = PreferencesSnapshot.get(context);
+        return new int[]{p.ledOn, p.ledOff};
     }
 
     /**
@@ -574,15 +555,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return pattern
      */
     static long[] getVibratorPattern(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final String s = p.getString(PREFS_VIBRATOR_PATTERN, "0");
-        final String[] ss = s.split("_");
-        final int l = ss.length;
-        final long[] ret = new long[l];
-        for (int i = 0; i < l; i++) {
-            ret[i] = Long.parseLong(ss[i]);
-        }
-        return ret;
+        return PreferencesSnapshot.get(context).getVibratorPattern();
     }
 
     /**
@@ -592,8 +565,16 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return resource id
      */
     static int getNotificationIcon(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final int i = p.getInt(PREFS_NOTIFICATION_ICON, R.drawable.stat_notify_sms);
+        return PreferencesSnapshot.get(context).notificationIcon;
+    }
+
+    /**
+     * Get drawable resource for notification icon.
+     *
+     * @param i index of notification icon
+     * @return resource id
+     */
+    static int getNotificationIcon(final int i) {
         if (i >= 0 && i < NOTIFICAION_IMG.length) {
             return NOTIFICAION_IMG[i];
         }
@@ -607,12 +588,7 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return resource id
      */
     static int getBubblesIn(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final int i = p.getInt(PREFS_BUBBLES_IN, R.drawable.bubble_old_turquoise_left);
-        if (i >= 0 && i < BUBBLES_IMG.length) {
-            return BUBBLES_IMG[i];
-        }
-        return R.drawable.bubble_old_turquoise_left;
+        return PreferencesSnapshot.get(context).bubblesIn;
     }
 
     /**
@@ -622,12 +598,21 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return resource id
      */
     static int getBubblesOut(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final int i = p.getInt(PREFS_BUBBLES_OUT, R.drawable.bubble_old_green_right);
+        return PreferencesSnapshot.get(context).bubblesOut;
+    }
+
+    /**
+     * Get drawable resource for bubble.
+     *
+     * @param i   index of bubble
+     * @param def default resource id
+     * @return resource id
+     */
+    static int getBubbles(final int i, final int def) {
         if (i >= 0 && i < BUBBLES_IMG.length) {
             return BUBBLES_IMG[i];
         }
-        return R.drawable.bubble_old_green_right;
+        return def;
     }
 
     /**
@@ -637,18 +622,14 @@ public class PreferencesActivity extends PreferenceActivity implements IPreferen
      * @return theme
      */
     static boolean decodeDecimalNCR(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        final boolean b = p.getBoolean(PREFS_DECODE_DECIMAL_NCR, true);
-        Log.d(TAG, "decode decimal ncr: ", b);
-        return b;
+        return PreferencesSnapshot.get(context).decodeDecimalNCR;
     }
 
     /**
      * Get the emoticons show state
      */
     static boolean showEmoticons(final Context context) {
-        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-        return p.getBoolean(PREFS_EMOTICONS, true);
+        return PreferencesSnapshot.get(context).showEmoticons;
     }
 
     /**
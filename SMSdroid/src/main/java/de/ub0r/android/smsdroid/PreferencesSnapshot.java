@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import de.ub0r.android.lib.Utils;
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * Parsed copy of all {@link SharedPreferences} read on hot paths. The snapshot is immutable and
+ * rebuilt whenever a preference changes.
+ *
+ * @author flx
+ */
+final class PreferencesSnapshot {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "pss";
+
+    /**
+     * Current snapshot, null if not loaded yet.
+     */
+    private static volatile PreferencesSnapshot current = null;
+
+    /**
+     * Rebuilds the snapshot on changes. {@link SharedPreferences} hold listeners weakly.
+     */
+    private static final OnSharedPreferenceChangeListener LISTENER
+            = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(final SharedPreferences p, final String key) {
+            Log.d(TAG, "changed: ", key);
+            current = new PreferencesSnapshot(p);
+        }
+    };
+
+    /**
+     * Theme.
+     */
+    final int theme;
+
+    /**
+     * Text size, 0 for default.
+     */
+    final int textSize;
+
+    /**
+     * Text color, 0 for default.
+     */
+    final int textColor;
+
+    /**
+     * Ignore text color in conversation list.
+     */
+    final boolean textColorIgnoreConv;
+
+    /**
+     * LED color.
+     */
+    final int ledColor;
+
+    /**
+     * LED on and off time.
+     */
+    final int ledOn, ledOff;
+
+    /**
+     * Vibrator pattern.
+     */
+    private final long[] vibratorPattern;
+
+    /**
+     * Notification icon.
+     */
+    final int notificationIcon;
+
+    /**
+     * Bubbles for incoming and outgoing messages.
+     */
+    final int bubblesIn, bubblesOut;
+
+    /**
+     * Decode decimal NCR.
+     */
+    final boolean decodeDecimalNCR;
+
+    /**
+     * Show emoticons as images.
+     */
+    final boolean showEmoticons;
+
+    /**
+     * Show full date.
+     */
+    final boolean showFullDate;
+
+    /**
+     * Show contact photos.
+     */
+    final boolean showContactPhoto;
+
+    /**
+     * Hide message count in conversation list.
+     */
+    final boolean hideMessageCount;
+
+    /**
+     * Hide paste button.
+     */
+    final boolean hidePaste;
+
+    /**
+     * Strip forwarding agents from incoming messages.
+     */
+    final boolean forwardSmsClean;
+
+    /**
+     * Show notifications.
+     */
+    final boolean notificationEnable;
+
+    /**
+     * Hide message details in notifications.
+     */
+    final boolean notificationPrivacy;
+
+    /**
+     * Vibrate on new messages.
+     */
+    final boolean vibrate;
+
+    /**
+     * Sound for new messages, null for none.
+     */
+    final Uri sound;
+
+    /**
+     * Parse all preferences.
+     *
+     * @param p {@link SharedPreferences}
+     */
+    private PreferencesSnapshot(final SharedPreferences p) {
+        theme = PreferencesActivity.THEME_BLACK.equals(p.getString(
+                PreferencesActivity.PREFS_THEME, null)) ? R.style.Theme_SMSdroid
+                : R.style.Theme_SMSdroid_Light;
+        textSize = Utils.parseInt(p.getString(PreferencesActivity.PREFS_TEXTSIZE, null), 0);
+        textColor = p.getInt(PreferencesActivity.PREFS_TEXTCOLOR, 0);
+        textColorIgnoreConv = p.getBoolean(PreferencesActivity.PREFS_TEXTCOLOR_IGNORE_CONV,
+                false);
+        ledColor = Utils.parseInt(p.getString(PreferencesActivity.PREFS_LED_COLOR, "65280"),
+                65280);
+        final String[] flash = p.getString(PreferencesActivity.PREFS_LED_FLASH, "500_2000")
+                .split("_");
+        ledOn = Utils.parseInt(flash[0], 500);
+        ledOff = flash.length > 1 ? Utils.parseInt(flash[1], 2000) : 2000;
+        vibratorPattern = parsePattern(p.getString(PreferencesActivity.PREFS_VIBRATOR_PATTERN,
+                "0"));
+        notificationIcon = PreferencesActivity.getNotificationIcon(p.getInt(
+                PreferencesActivity.PREFS_NOTIFICATION_ICON, R.drawable.stat_notify_sms));
+        bubblesIn = PreferencesActivity.getBubbles(p.getInt(PreferencesActivity.PREFS_BUBBLES_IN,
+                R.drawable.bubble_old_turquoise_left), R.drawable.bubble_old_turquoise_left);
+        bubblesOut = PreferencesActivity.getBubbles(p.getInt(
+                PreferencesActivity.PREFS_BUBBLES_OUT, R.drawable.bubble_old_green_right),
+                R.drawable.bubble_old_green_right);
+        decodeDecimalNCR = p.getBoolean(PreferencesActivity.PREFS_DECODE_DECIMAL_NCR, true);
+        showEmoticons = p.getBoolean(PreferencesActivity.PREFS_EMOTICONS, true);
+        showFullDate = p.getBoolean(PreferencesActivity.PREFS_FULL_DATE, false);
+        showContactPhoto = p.getBoolean(PreferencesActivity.PREFS_CONTACT_PHOTO, true);
+        hideMessageCount = p.getBoolean(PreferencesActivity.PREFS_HIDE_MESSAGE_COUNT, false);
+        hidePaste = p.getBoolean(PreferencesActivity.PREFS_HIDE_PASTE, false);
+        forwardSmsClean = p.getBoolean(PreferencesActivity.PREFS_FORWARD_SMS_CLEAN, false);
+        notificationEnable = p.getBoolean(PreferencesActivity.PREFS_NOTIFICATION_ENABLE, true);
+        notificationPrivacy = p.getBoolean(PreferencesActivity.PREFS_NOTIFICATION_PRIVACY,
+                false);
+        vibrate = p.getBoolean(PreferencesActivity.PREFS_VIBRATE, false);
+        final String s = p.getString(PreferencesActivity.PREFS_SOUND, null);
+        sound = TextUtils.isEmpty(s) ? null : Uri.parse(s);
+    }
+
+    /**
+     * Parse a vibrator pattern.
+     *
+     * @param s pattern like "0_200_100"
+     * @return pattern, {0} if invalid
+     */
+    private static long[] parsePattern(final String s) {
+        final String[] ss = s.split("_");
+        final int l = ss.length;
+        final long[] ret = new long[l];
+        try {
+            for (int i = 0; i < l; i++) {
+                ret[i] = Long.parseLong(ss[i]);
+            }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid vibrator pattern: ", s, e);
+            return new long[]{0};
+        }
+        return ret;
+    }
+
+    /**
+     * Get the current snapshot, load it if needed.
+     *
+     * @param context {@link Context}
+     * @return {@link PreferencesSnapshot}
+     */
+    static PreferencesSnapshot get(final Context context) {
+        PreferencesSnapshot ret = current;
+        if (ret == null) {
+            synchronized (PreferencesSnapshot.class) {
+                ret = current;
+                if (ret == null) {
+                    final SharedPreferences p = PreferenceManager
+                            .getDefaultSharedPreferences(context);
+                    p.registerOnSharedPreferenceChangeListener(LISTENER);
+                    ret = new PreferencesSnapshot(p);
+                    current = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return vibrator pattern, {0} for default
+     */
+    long[] getVibratorPattern() {
+        return vibratorPattern.clone();
+    }
+}
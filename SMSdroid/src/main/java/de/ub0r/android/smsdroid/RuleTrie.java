@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Blocking rules compiled into a deterministic automaton. The rules are added to a digit trie
+ * first, its '?' branches are then merged into the digit branches. Matching a number is a single
+ * pass over its digits, it costs its length, not the number of rules.
+ * <p/>
+ * Rules are made of digits and +:
+ * <ul>
+ * <li>'?' matches a single digit, e.g. "+49???1234"</li>
+ * <li>a trailing '*' matches any suffix, e.g. "+1900*"</li>
+ * <li>"short:N" matches all numbers with up to N digits</li>
+ * </ul>
+ *
+ * @author flx
+ */
+final class RuleTrie {
+
+    /**
+     * Prefix of short code rules.
+     */
+    static final String SHORT_CODE = "short:";
+
+    /**
+     * Maximal length of short codes.
+     */
+    private static final int MAX_SHORT_CODE = 10;
+
+    /**
+     * Trie without any rule.
+     */
+    static final RuleTrie EMPTY = new RuleTrie(Collections.<String>emptyList());
+
+    /**
+     * Child index of '+'.
+     */
+    private static final int PLUS = 10;
+
+    /**
+     * Child index of '?'.
+     */
+    private static final int ANY = 11;
+
+    /**
+     * Number of children per node.
+     */
+    private static final int WIDTH = 12;
+
+    /**
+     * Node flag: a rule ends here.
+     */
+    private static final byte END = 1;
+
+    /**
+     * Node flag: a prefix rule ends here.
+     */
+    private static final byte PREFIX = 2;
+
+    /**
+     * Children of all nodes: node * {@link #WIDTH} + index -> child, 0 for none. The root is
+     * node 0 and never a child. Once compiled, no node has a '?' child.
+     */
+    private int[] next;
+
+    /**
+     * Flags of all nodes.
+     */
+    private byte[] flags;
+
+    /**
+     * Number of nodes.
+     */
+    private int nodes = 1;
+
+    /**
+     * Compile rules. Invalid rules are ignored.
+     *
+     * @param rules rules
+     */
+    RuleTrie(final Collection<String> rules) {
+        next = new int[16 * WIDTH];
+        flags = new byte[16];
+        for (String rule : rules) {
+            add(rule);
+        }
+        determinize();
+    }
+
+    /**
+     * @return number of nodes
+     */
+    int size() {
+        return nodes;
+    }
+
+    /**
+     * Check a rule.
+     *
+     * @param rule rule
+     * @return true, if the rule is valid
+     */
+    static boolean isValid(final String rule) {
+        if (rule == null || rule.length() == 0) {
+            return false;
+        }
+        if (rule.startsWith(SHORT_CODE)) {
+            final int n = getShortCodeLength(rule);
+            return n > 0 && n <= MAX_SHORT_CODE;
+        }
+        final int l = rule.length();
+        for (int i = 0; i < l; i++) {
+            final char c = rule.charAt(i);
+            if (c == '*' && i == l - 1 && i > 0) {
+                // do not block everything
+                return true;
+            } else if (c != '?' && getIndex(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a short code rule.
+     *
+     * @param rule rule
+     * @return maximal length of short codes, -1 if invalid
+     */
+    private static int getShortCodeLength(final String rule) {
+        try {
+            return Integer.parseInt(rule.substring(SHORT_CODE.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the child index of a number's character.
+     *
+     * @param c character
+     * @return index or -1 if the character is not part of a number
+     */
+    private static int getIndex(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c == '+') {
+            return PLUS;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Add a rule.
+     *
+     * @param rule rule
+     */
+    private void add(final String rule) {
+        if (!isValid(rule)) {
+            return;
+        }
+        if (rule.startsWith(SHORT_CODE)) {
+            final int n = getShortCodeLength(rule);
+            final char[] any = new char[n];
+            Arrays.fill(any, '?');
+            for (int i = 1; i <= n; i++) {
+                add(new String(any, 0, i));
+            }
+            return;
+        }
+        int node = 0;
+        final int l = rule.length();
+        for (int i = 0; i < l; i++) {
+            final char c = rule.charAt(i);
+            if (c == '*') {
+                flags[node] |= PREFIX;
+                return;
+            }
+            final int j = node * WIDTH + (c == '?' ? ANY : getIndex(c));
+            if (next[j] == 0) {
+                // newNode() may replace the array
+                final int child = newNode();
+                next[j] = child;
+            }
+            node = next[j];
+        }
+        flags[node] |= END;
+    }
+
+    /**
+     * Allocate a new node.
+     *
+     * @return node
+     */
+    private int newNode() {
+        if (nodes == flags.length) {
+            flags = Arrays.copyOf(flags, nodes * 2);
+            next = Arrays.copyOf(next, nodes * 2 * WIDTH);
+        }
+        return nodes++;
+    }
+
+    /**
+     * Replace the trie by a deterministic automaton. Each new node stands for the set of trie
+     * nodes reachable by the same digits, following '?' children for any digit.
+     */
+    private void determinize() {
+        final int[] trieNext = next;
+        final byte[] trieFlags = flags;
+        next = new int[16 * WIDTH];
+        flags = new byte[16];
+        nodes = 1;
+        flags[0] = trieFlags[0];
+        // trie nodes of each new node, new nodes by their trie nodes
+        final ArrayList<int[]> sets = new ArrayList<>();
+        final HashMap<String, Integer> known = new HashMap<>();
+        sets.add(new int[]{0});
+        for (int node = 0; node < sets.size(); node++) {
+            if ((flags[node] & PREFIX) != 0) {
+                // matches anyway
+                continue;
+            }
+            final int[] set = sets.get(node);
+            final int[] targets = new int[set.length * 2];
+            for (int i = 0; i < ANY; i++) {
+                int k = 0;
+                for (int n : set) {
+                    final int t = trieNext[n * WIDTH + i];
+                    if (t != 0) {
+                        targets[k++] = t;
+                    }
+                    final int any = i == PLUS ? 0 : trieNext[n * WIDTH + ANY];
+                    if (any != 0) {
+                        targets[k++] = any;
+                    }
+                }
+                if (k == 0) {
+                    continue;
+                }
+                final int[] target = distinct(targets, k);
+                final String key = Arrays.toString(target);
+                Integer child = known.get(key);
+                if (child == null) {
+                    child = newNode();
+                    byte f = 0;
+                    for (int t : target) {
+                        f |= trieFlags[t];
+                    }
+                    flags[child] = f;
+                    sets.add(target);
+                    known.put(key, child);
+                }
+                next[node * WIDTH + i] = child;
+            }
+        }
+    }
+
+    /**
+     * Sort and deduplicate values.
+     *
+     * @param values values
+     * @param count  number of values to use
+     * @return sorted distinct values
+     */
+    private static int[] distinct(final int[] values, final int count) {
+        Arrays.sort(values, 0, count);
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            if (k == 0 || values[i] != values[k - 1]) {
+                values[k++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, k);
+    }
+
+    /**
+     * Check a number against all rules.
+     *
+     * @param nr normalized number
+     * @return true, if any rule matches
+     */
+    boolean matches(final String nr) {
+        if (nodes == 1 || nr == null) {
+            return false;
+        }
+        final int l = nr.length();
+        int n = 0;
+        for (int p = 0; p < l; p++) {
+            if ((flags[n] & PREFIX) != 0) {
+                return true;
+            }
+            final int i = getIndex(nr.charAt(p));
+            if (i < 0) {
+                return false;
+            }
+            n = next[n * WIDTH + i];
+            if (n == 0) {
+                return false;
+            }
+        }
+        return (flags[n] & (END | PREFIX)) != 0;
+    }
+}
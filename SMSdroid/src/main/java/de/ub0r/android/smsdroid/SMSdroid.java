@@ -20,6 +20,7 @@ package de.ub0r.android.smsdroid;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Application;
 import android.app.NotificationChannel;
@@ -72,6 +73,12 @@ public final class SMSdroid extends Application {
                 + ")");
         updateSenderStatus();
         setupNotificationChannels();
+        ContactCache.init(this);
+        final ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        if (am != null) {
+            Message.setCacheBudgetByMemoryClass(am.getMemoryClass());
+            AvatarCache.setCacheBudget(am.getMemoryClass(), getResources().getDisplayMetrics());
+        }
         MobileAds.initialize(this, getString(R.string.admob_app_id));
     }
 
@@ -42,11 +42,12 @@ public final class SmileyParser {
     private static SmileyParser sInstance;
 
     /**
-     * Get the single instance.
+     * Get the single instance. Synchronized, conversation list rows are built in background while
+     * messages are shown on the main thread.
      *
      * @return the {@link SmileyParser}
      */
-    public static SmileyParser getInstance(final Context context) {
+    public static synchronized SmileyParser getInstance(final Context context) {
         if (sInstance == null) {
             sInstance = new SmileyParser(context);
         }
@@ -30,28 +30,28 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
-import android.preference.PreferenceManager;
-import android.provider.CallLog.Calls;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.telephony.SmsMessage;
-import android.text.TextUtils;
-import android.util.TypedValue;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import de.ub0r.android.lib.apis.Contact;
 import de.ub0r.android.logg0r.Log;
 
 /**
@@ -111,19 +111,91 @@ public class SmsReceiver extends BroadcastReceiver {
     private static final int ID_COUNT = 1;
 
     /**
-     * Sort the newest message first.
+     * Maximal time to wait for a new message showing up in the database.
      */
-    private static final String SORT = Calls.DATE + " DESC";
+    private static final long MAX_WAIT = 7500L;
 
     /**
-     * Delay for spinlock, waiting for new messages.
+     * Maximal time to hold the wakelock while processing a broadcast.
      */
-    private static final long SLEEP = 500;
+    private static final long WAKELOCK_TIMEOUT = MAX_WAIT + 2000L;
 
     /**
-     * Number of maximal spins.
+     * Minimal time between two updates of the new message notification.
      */
-    private static final int MAX_SPINS = 15;
+    private static final long NOTIFY_DELAY = 1000L;
+
+    /**
+     * Messages received with less time in between belong to the same burst.
+     */
+    private static final long BURST_GAP = 5000L;
+
+    /**
+     * Process broadcasts one by one in background.
+     */
+    private static final ScheduledExecutorService EXECUTOR = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(r, "SmsReceiver");
+                }
+            });
+
+    /**
+     * Lock for coalescing notification updates.
+     */
+    private static final Object NOTIFY_LOCK = new Object();
+
+    /**
+     * Time of last notification update.
+     */
+    private static long lastNotify = 0L;
+
+    /**
+     * Time of last new message.
+     */
+    private static long lastMessage = 0L;
+
+    /**
+     * Is a notification update scheduled?
+     */
+    private static boolean notifyScheduled = false;
+
+    /**
+     * Should the scheduled notification update alert the user?
+     */
+    private static boolean notifyAlert = false;
+
+    /**
+     * A received SMS passing the processing stages.
+     */
+    private static final class IncomingSms {
+
+        /**
+         * Originating address.
+         */
+        String address;
+
+        /**
+         * Sender shown to the user.
+         */
+        String sender;
+
+        /**
+         * Message body.
+         */
+        String text;
+
+        /**
+         * Do not notify for this message.
+         */
+        boolean silent = false;
+
+        /**
+         * {@link Uri} of the message if it was inserted by us.
+         */
+        Uri inserted = null;
+    }
 
     /**
      * ID for new message notification.
@@ -161,226 +233,276 @@ public class SmsReceiver extends BroadcastReceiver {
                         .equals(Telephony.Sms.getDefaultSmsPackage(context)));
     }
 
+    /**
+     * Handle a received broadcast. The work is done in background, the broadcast is kept alive
+     * until it is finished.
+     *
+     * @param receiver {@link BroadcastReceiver}
+     * @param context  {@link Context}
+     * @param intent   received {@link Intent}
+     */
     static void handleOnReceive(final BroadcastReceiver receiver, final Context context,
                                 final Intent intent) {
         final String action = intent.getAction();
         Log.d(TAG, "onReceive(context, ", action, ")");
-        final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        final PowerManager.WakeLock wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        wakelock.acquire();
-        Log.i(TAG, "got wakelock");
-        Log.d(TAG, "got intent: ", action);
+        final long received = SystemClock.elapsedRealtime();
+        final int resultCode = receiver.getResultCode();
+        final BroadcastReceiver.PendingResult result = receiver.goAsync();
         try {
-            Log.d(TAG, "sleep(", SLEEP, ")");
-            Thread.sleep(SLEEP);
-        } catch (InterruptedException e) {
-            Log.d(TAG, "interrupted in spinlock", e);
-            e.printStackTrace();
-        }
-        String text;
-        if (SenderActivity.MESSAGE_SENT_ACTION.equals(action)) {
-            handleSent(context, intent, receiver.getResultCode());
-        } else {
-            boolean silent = false;
-
-            if (shouldHandleSmsAction(context, action)) {
-                Bundle b = intent.getExtras();
-                assert b != null;
-                Object[] messages = (Object[]) b.get("pdus");
-                SmsMessage[] smsMessage = new SmsMessage[messages.length];
-                int l = messages.length;
-                for (int i = 0; i < l; i++) {
-                    smsMessage[i] = SmsMessage.createFromPdu((byte[]) messages[i]);
-                }
-                text = null;
-                if (l > 0) {
-                    // concatenate multipart SMS body
-                    StringBuilder sbt = new StringBuilder();
-                    for (int i = 0; i < l; i++) {
-                        sbt.append(smsMessage[i].getMessageBody());
-                    }
-                    text = sbt.toString();
-
-                    // ! Check in blacklist db - filter spam
-                    String s = smsMessage[0].getDisplayOriginatingAddress();
-
-                    // this code is used to strip a forwarding agent and display the orginated number as sender
-                    final SharedPreferences prefs = PreferenceManager
-                            .getDefaultSharedPreferences(context);
-                    if (prefs.getBoolean(PreferencesActivity.PREFS_FORWARD_SMS_CLEAN, false)
-                            && text.contains(":")) {
-                        Pattern smsPattern = Pattern.compile("([0-9a-zA-Z+]+):");
-                        Matcher m = smsPattern.matcher(text);
-                        if (m.find()) {
-                            s = m.group(1);
-                            Log.d(TAG, "found forwarding sms number: (", s, ")");
-                            // now strip the sender from the message
-                            Pattern textPattern = Pattern.compile("^[0-9a-zA-Z+]+: (.*)");
-                            Matcher m2 = textPattern.matcher(text);
-                            if (text.contains(":") && m2.find()) {
-                                text = m2.group(1);
-                                Log.d(TAG, "stripped the message");
-                            }
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final PowerManager.WakeLock wakelock = getWakeLock(context);
+                    wakelock.acquire(WAKELOCK_TIMEOUT);
+                    Log.i(TAG, "got wakelock");
+                    try {
+                        process(context, intent, resultCode, received);
+                    } finally {
+                        if (wakelock.isHeld()) {
+                            wakelock.release();
+                            Log.i(TAG, "wakelock released");
+                        }
+                        if (result != null) {
+                            result.finish();
                         }
-                    }
-
-                    if (SpamDB.isBlacklisted(context, smsMessage[0].getOriginatingAddress())) {
-                        Log.d(TAG, "Message from ", s, " filtered.");
-                        silent = true;
-                    } else {
-                        Log.d(TAG, "Message from ", s, " NOT filtered.");
-                    }
-
-                    if (action.equals(ACTION_SMS_NEW)) {
-                        // API19+: save message to the database
-                        ContentValues values = new ContentValues();
-                        values.put("address", s);
-                        values.put("body", text);
-                        context.getContentResolver().insert(Uri.parse("content://sms/inbox"),
-                                values);
-                        Log.d(TAG, "Insert SMS into database: ", s, ", ", text);
                     }
                 }
-                updateNotificationsWithNewText(context, text, silent);
-            } else if (ACTION_MMS_OLD.equals(action) || ACTION_MMS_MEW.equals(action)) {
-                text = MMS_BODY;
-                // TODO API19+ MMS code
-                updateNotificationsWithNewText(context, text, silent);
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+            if (result != null) {
+                result.finish();
             }
         }
-        wakelock.release();
-        Log.i(TAG, "wakelock released");
     }
 
-    private static void updateNotificationsWithNewText(final Context context, final String text,
-                                                       final boolean silent) {
-        if (silent) {
-            Log.i(TAG, "ignore notifications for silent text");
-            return;
-        }
-
-        Log.d(TAG, "text: ", text);
-        int count = MAX_SPINS;
-        do {
-            Log.d(TAG, "spin: ", count);
-            try {
-                Log.d(TAG, "sleep(", SLEEP, ")");
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException e) {
-                Log.d(TAG, "interrupted in spin lock", e);
-                e.printStackTrace();
-            }
-            --count;
-        } while (updateNewMessageNotification(context, text) <= 0 && count > 0);
-
-        if (count == 0) { // use messages as they are available
-            updateNewMessageNotification(context, null);
-        }
+    /**
+     * Create a new wakelock.
+     *
+     * @param context {@link Context}
+     * @return {@link PowerManager.WakeLock}
+     */
+    private static PowerManager.WakeLock getWakeLock(final Context context) {
+        final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
     }
 
-
     /**
-     * Get unread SMS.
+     * Log the time spent in a stage of processing a broadcast.
      *
-     * @param cr   {@link ContentResolver} to query
-     * @param text text of the last assumed unread message
-     * @return [thread id (-1 if there are more), number of unread messages (-1 if text does not
-     * match newest message)]
+     * @param stage name of the stage
+     * @param start start time of the stage
+     * @return end time of the stage
      */
-    private static int[] getUnreadSMS(final ContentResolver cr, final String text) {
-        Log.d(TAG, "getUnreadSMS(cr, ", text, ")");
-        Cursor cursor = cr.query(URI_SMS, Message.PROJECTION, Message.SELECTION_READ_UNREAD,
-                Message.SELECTION_UNREAD, SORT);
-
-        //Cursor cursor = cr.query(URI_SMS, null, null, null, null);
+    private static long logStage(final String stage, final long start) {
+        final long now = SystemClock.elapsedRealtime();
+        Log.d(TAG, "stage ", stage, ": ", now - start, "ms");
+        return now;
+    }
 
-        if (cursor == null || cursor.isClosed() || cursor.getCount() == 0 || !cursor
-                .moveToFirst()) {
-            if (text != null) { // try again!
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
+    /**
+     * Process a received broadcast. Do not call from the main thread.
+     *
+     * @param context    {@link Context}
+     * @param intent     received {@link Intent}
+     * @param resultCode result code of the broadcast
+     * @param received   time the broadcast was received
+     */
+    private static void process(final Context context, final Intent intent,
+                                final int resultCode, final long received) {
+        final String action = intent.getAction();
+        Log.d(TAG, "got intent: ", action);
+        if (SenderActivity.MESSAGE_SENT_ACTION.equals(action)) {
+            handleSent(context, intent, resultCode);
+        } else if (shouldHandleSmsAction(context, action)) {
+            long t = logStage("wait", received);
+            final IncomingSms sms = parseSms(intent);
+            t = logStage("parse", t);
+            if (sms != null) {
+                filterSms(context, sms);
+                t = logStage("filter", t);
+                if (action.equals(ACTION_SMS_NEW)) {
+                    persistSms(context, sms);
+                    t = logStage("persist", t);
                 }
-                return new int[]{-1, -1};
+            }
+            if (sms == null) {
+                updateNotificationsWithNewText(context, null, false, null, URI_SMS);
             } else {
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
-                }
-                return new int[]{0, 0};
+                updateNotificationsWithNewText(context, sms.text, sms.silent, sms.inserted,
+                        URI_SMS);
             }
+            logStage("notify", t);
+            logStage("receive to notify", received);
+        } else if (ACTION_MMS_OLD.equals(action) || ACTION_MMS_MEW.equals(action)) {
+            final long t = logStage("wait", received);
+            // TODO API19+ MMS code
+            updateNotificationsWithNewText(context, MMS_BODY, false, null, URI_MMS);
+            logStage("notify", t);
+            logStage("receive to notify", received);
         }
-        final String t = cursor.getString(Message.INDEX_BODY);
-        if (text != null && (t == null || !t.startsWith(text))) {
-            if (!cursor.isClosed()) {
-                cursor.close();
-            }
-            return new int[]{-1, -1}; // try again!
+    }
+
+    /**
+     * Parse a received SMS.
+     *
+     * @param intent received {@link Intent}
+     * @return {@link IncomingSms} or null if there are no messages
+     */
+    private static IncomingSms parseSms(final Intent intent) {
+        final Bundle b = intent.getExtras();
+        assert b != null;
+        final Object[] messages = (Object[]) b.get("pdus");
+        if (messages == null || messages.length == 0) {
+            return null;
+        }
+        final int l = messages.length;
+        final SmsMessage[] smsMessage = new SmsMessage[l];
+        for (int i = 0; i < l; i++) {
+            smsMessage[i] = SmsMessage.createFromPdu((byte[]) messages[i]);
         }
-        final long d = cursor.getLong(Message.INDEX_DATE);
-        if (d > lastUnreadDate) {
-            lastUnreadDate = d;
-            lastUnreadBody = t;
+        // concatenate multipart SMS body
+        final StringBuilder sbt = new StringBuilder();
+        for (int i = 0; i < l; i++) {
+            sbt.append(smsMessage[i].getMessageBody());
         }
-        int tid = cursor.getInt(Message.INDEX_THREADID);
-        while (cursor.moveToNext() && tid > -1) {
-            // check if following messages are from the same thread
-            if (tid != cursor.getInt(Message.INDEX_THREADID)) {
-                tid = -1;
+        final IncomingSms ret = new IncomingSms();
+        ret.text = sbt.toString();
+        ret.address = smsMessage[0].getOriginatingAddress();
+        ret.sender = smsMessage[0].getDisplayOriginatingAddress();
+        return ret;
+    }
+
+    /**
+     * Strip forwarding agents and check the blacklist.
+     *
+     * @param context {@link Context}
+     * @param sms     {@link IncomingSms}
+     */
+    private static void filterSms(final Context context, final IncomingSms sms) {
+        // this code is used to strip a forwarding agent and display the orginated number as sender
+        if (PreferencesSnapshot.get(context).forwardSmsClean) {
+            final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse(sms.text);
+            if (r != null) {
+                sms.sender = r.sender;
+                Log.d(TAG, "found forwarding sms number: (", sms.sender, ")");
+                if (r.stripped) {
+                    // now strip the sender from the message
+                    sms.text = r.text;
+                    Log.d(TAG, "stripped the message");
+                }
             }
         }
-        final int count = cursor.getCount();
-        if (!cursor.isClosed()) {
-            cursor.close();
+
+        // ! Check in blacklist db - filter spam
+        if (SpamDB.isBlacklisted(context, sms.address)) {
+            Log.d(TAG, "Message from ", sms.sender, " filtered.");
+            sms.silent = true;
+            SpamDB.countHit(context, sms.address);
+        } else {
+            Log.d(TAG, "Message from ", sms.sender, " NOT filtered.");
         }
-        return new int[]{tid, count};
     }
 
     /**
-     * Get unread MMS.
+     * API19+: save message to the database.
      *
-     * @param cr   {@link ContentResolver} to query
-     * @param text text of the last assumed unread message
-     * @return [thread id (-1 if there are more), number of unread messages]
-     */
-    private static int[] getUnreadMMS(final ContentResolver cr, final String text) {
-        Log.d(TAG, "getUnreadMMS(cr, ", text, ")");
-        Cursor cursor = cr.query(URI_MMS, Message.PROJECTION_READ, Message.SELECTION_READ_UNREAD,
-                Message.SELECTION_UNREAD, null);
-        if (cursor == null || cursor.isClosed() || cursor.getCount() == 0 || !cursor
-                .moveToFirst()) {
-            if (MMS_BODY.equals(text)) {
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
-                }
-                return new int[]{-1, -1}; // try again!
+     * @param context {@link Context}
+     * @param sms     {@link IncomingSms}
+     */
+    private static void persistSms(final Context context, final IncomingSms sms) {
+        ContentValues values = new ContentValues();
+        values.put("address", sms.sender);
+        values.put("body", sms.text);
+        UnreadIndex.beginChange();
+        sms.inserted = context.getContentResolver().insert(Uri.parse("content://sms/inbox"),
+                values);
+        Log.d(TAG, "Insert SMS into database: ", sms.sender, ", ", sms.text, ": ", sms.inserted);
+        if (sms.inserted != null) {
+            addToUnreadIndex(context, sms.inserted);
+        }
+    }
+
+    /**
+     * Add a message inserted by us to the {@link UnreadIndex}.
+     *
+     * @param context  {@link Context}
+     * @param inserted {@link Uri} of the message
+     */
+    private static void addToUnreadIndex(final Context context, final Uri inserted) {
+        final Cursor c = context.getContentResolver().query(inserted, Message.PROJECTION_SMS,
+                null, null, null);
+        if (c == null) {
+            UnreadIndex.invalidate();
+            return;
+        }
+        try {
+            if (c.moveToFirst()) {
+                UnreadIndex.onNewSms(c.getInt(Message.INDEX_THREADID),
+                        c.getLong(Message.INDEX_DATE), c.getString(Message.INDEX_BODY));
             } else {
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
-                }
-                return new int[]{0, 0};
+                UnreadIndex.invalidate();
             }
+        } finally {
+            c.close();
         }
-        int tid = cursor.getInt(Message.INDEX_THREADID);
-        long d = cursor.getLong(Message.INDEX_DATE);
-        if (d < ConversationListActivity.MIN_DATE) {
-            d *= ConversationListActivity.MILLIS;
+    }
+
+    /**
+     * Update notifications for a new message.
+     *
+     * @param context  {@link Context}
+     * @param text     text of the new message
+     * @param silent   do not notify at all
+     * @param inserted {@link Uri} of the message if it was inserted by us, null otherwise
+     * @param observe  {@link Uri} to observe while waiting for the message
+     */
+    private static void updateNotificationsWithNewText(final Context context, final String text,
+                                                       final boolean silent, final Uri inserted,
+                                                       final Uri observe) {
+        if (silent) {
+            Log.i(TAG, "ignore notifications for silent text");
+            return;
         }
-        if (d > lastUnreadDate) {
-            lastUnreadDate = d;
-            lastUnreadBody = null;
+
+        Log.d(TAG, "text: ", text);
+        final ContentResolver cr = context.getContentResolver();
+        if (inserted != null) {
+            // the message is in the database already
+            scheduleNewMessageNotification(context, getUnread(cr, text)[ID_COUNT] > 0);
+            return;
         }
-        while (cursor.moveToNext() && tid > -1) {
-            // check if following messages are from the same thread
-            if (tid != cursor.getInt(Message.INDEX_THREADID)) {
-                tid = -1;
+
+        // wait for the system to insert the message
+        final Semaphore changed = new Semaphore(0);
+        final ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                changed.release();
             }
+        };
+        cr.registerContentObserver(observe, true, observer);
+        try {
+            final long end = SystemClock.elapsedRealtime() + MAX_WAIT;
+            while (getUnread(cr, text)[ID_COUNT] <= 0) {
+                final long wait = end - SystemClock.elapsedRealtime();
+                if (wait <= 0 || !changed.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                    Log.i(TAG, "new message did not show up, use messages as they are available");
+                    scheduleNewMessageNotification(context, false);
+                    return;
+                }
+                // handle bursts of changes at once
+                changed.drainPermits();
+            }
+            scheduleNewMessageNotification(context, true);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted while waiting for new message", e);
+        } finally {
+            cr.unregisterContentObserver(observer);
         }
-        final int count = cursor.getCount();
-        if (!cursor.isClosed()) {
-            cursor.close();
-        }
-        return new int[]{tid, count};
     }
 
+
     /**
      * Get unread messages (MMS and SMS).
      *
@@ -392,28 +514,10 @@ public class SmsReceiver extends BroadcastReceiver {
     private static int[] getUnread(final ContentResolver cr, final String text) {
         try {
             Log.d(TAG, "getUnread(cr, ", text, ")");
-            lastUnreadBody = null;
-            lastUnreadDate = 0L;
-            String t = text;
-            if (MMS_BODY.equals(t)) {
-                t = null;
-            }
-            final int[] retSMS = getUnreadSMS(cr, t);
-            if (retSMS[ID_COUNT] == -1) {
-                // return to retry
-                return new int[]{-1, -1};
-            }
-            final int[] retMMS = getUnreadMMS(cr, text);
-            if (retMMS[ID_COUNT] == -1) {
-                // return to retry
-                return new int[]{-1, -1};
-            }
-            final int[] ret = new int[]{-1, retSMS[ID_COUNT] + retMMS[ID_COUNT]};
-            if (retMMS[ID_TID] <= 0 || retSMS[ID_TID] == retMMS[ID_TID]) {
-                ret[ID_TID] = retSMS[ID_TID];
-            } else if (retSMS[ID_TID] <= 0) {
-                ret[ID_TID] = retMMS[ID_TID];
-            }
+            final boolean mms = MMS_BODY.equals(text);
+            final int[] ret = UnreadIndex.get(cr, mms ? null : text, mms);
+            lastUnreadDate = UnreadIndex.getNewestDate();
+            lastUnreadBody = UnreadIndex.getNewestBody();
             return ret;
         } catch (SQLiteException e) {
             Log.e(TAG, "unable to get unread messages", e);
@@ -421,6 +525,97 @@ public class SmsReceiver extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Update new message {@link Notification} for a new message. Updates following each other
+     * closely are coalesced into a single update. Only the first message of a burst alerts the
+     * user.
+     *
+     * @param context    {@link Context}
+     * @param newMessage the update is caused by a new message
+     */
+    private static void scheduleNewMessageNotification(final Context context,
+                                                       final boolean newMessage) {
+        final long now = SystemClock.elapsedRealtime();
+        final boolean alert;
+        synchronized (NOTIFY_LOCK) {
+            alert = newMessage && (lastMessage == 0L || now - lastMessage >= BURST_GAP);
+            if (newMessage) {
+                lastMessage = now;
+            }
+            if (notifyScheduled) {
+                Log.d(TAG, "coalesce notification update");
+                notifyAlert |= alert;
+                return;
+            }
+            final long wait = lastNotify + NOTIFY_DELAY - now;
+            if (lastNotify != 0L && wait > 0L) {
+                Log.d(TAG, "schedule notification update in ", wait, "ms");
+                final Context appContext = context.getApplicationContext();
+                // keep the device awake until the update is done
+                final PowerManager.WakeLock wakelock = getWakeLock(appContext);
+                wakelock.acquire(wait + WAKELOCK_TIMEOUT);
+                try {
+                    EXECUTOR.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            final boolean a;
+                            synchronized (NOTIFY_LOCK) {
+                                a = notifyAlert;
+                                notifyAlert = false;
+                                notifyScheduled = false;
+                                lastNotify = SystemClock.elapsedRealtime();
+                            }
+                            try {
+                                updateNewMessageNotification(appContext, null, a);
+                            } finally {
+                                if (wakelock.isHeld()) {
+                                    wakelock.release();
+                                }
+                            }
+                        }
+                    }, wait, TimeUnit.MILLISECONDS);
+                    notifyScheduled = true;
+                    notifyAlert = alert;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "rejected execution", e);
+                    wakelock.release();
+                }
+            }
+            lastNotify = now;
+        }
+        updateNewMessageNotification(context, null, alert);
+    }
+
+    /**
+     * Load a contact's avatar in background and update the {@link Notification} quietly
+     * afterwards.
+     *
+     * @param context {@link Context}
+     * @param contact {@link Contact}
+     * @param px      size in pixel
+     */
+    private static void loadAvatar(final Context context, final Contact contact, final int px) {
+        final Context appContext = context.getApplicationContext();
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (AvatarCache.peek(contact, px) != null
+                            || AvatarCache.isLoadedRecently(contact, px)) {
+                        return;
+                    }
+                    AvatarCache.get(appContext, contact, px);
+                    if (AvatarCache.peek(contact, px) != null) {
+                        updateNewMessageNotification(appContext, null, false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "rejected execution", e);
+        }
+    }
+
     /**
      * Update new message {@link Notification}.
      *
@@ -429,15 +624,25 @@ public class SmsReceiver extends BroadcastReceiver {
      * @return number of unread messages
      */
     static int updateNewMessageNotification(final Context context, final String text) {
-        Log.d(TAG, "updNewMsgNoti(", context, ",", text, ")");
+        return updateNewMessageNotification(context, text, text != null);
+    }
+
+    /**
+     * Update new message {@link Notification}.
+     *
+     * @param context {@link Context}
+     * @param text    text of the last assumed unread message
+     * @param alert   play sound and vibrate
+     * @return number of unread messages
+     */
+    private static int updateNewMessageNotification(final Context context, final String text,
+                                                    final boolean alert) {
+        Log.d(TAG, "updNewMsgNoti(", context, ",", text, ",", alert, ")");
         final NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        final boolean enableNotifications = prefs.getBoolean(
-                PreferencesActivity.PREFS_NOTIFICATION_ENABLE, true);
-        final boolean privateNotification = prefs.getBoolean(
-                PreferencesActivity.PREFS_NOTIFICATION_PRIVACY, false);
-        final boolean showPhoto = !privateNotification
-                && prefs.getBoolean(PreferencesActivity.PREFS_CONTACT_PHOTO, true);
+        final PreferencesSnapshot prefs = PreferencesSnapshot.get(context);
+        final boolean enableNotifications = prefs.notificationEnable;
+        final boolean privateNotification = prefs.notificationPrivacy;
+        final boolean showPhoto = !privateNotification && prefs.showContactPhoto;
         if (!enableNotifications) {
             notificationManager.cancelAll();
             Log.d(TAG, "no notification needed!");
@@ -453,7 +658,7 @@ public class SmsReceiver extends BroadcastReceiver {
             return l;
         }
 
-        if (enableNotifications && (text != null || l == 0)) {
+        if (enableNotifications && (alert || l == 0)) {
             notificationManager.cancel(NOTIFICATION_ID_NEW);
         }
         Uri uri;
@@ -485,7 +690,7 @@ public class SmsReceiver extends BroadcastReceiver {
                         } else {
                             a = conv.getContact().getDisplayName();
                         }
-                        nb.setSmallIcon(PreferencesActivity.getNotificationIcon(context));
+                        nb.setSmallIcon(prefs.notificationIcon);
                         nb.setTicker(a);
                         nb.setWhen(lastUnreadDate);
                         if (l == 1) {
@@ -525,20 +730,15 @@ public class SmsReceiver extends BroadcastReceiver {
                             nb.setContentIntent(defaultPendingIntent);
                         }
                         if (showPhoto) {
-                            try {
-                                conv.getContact().update(context, false, true);
-                            } catch (NullPointerException e) {
-                                Log.e(TAG, "updating contact failed", e);
-                            }
-                            Drawable d = conv.getContact().getAvatar(context, null);
-                            if (d instanceof BitmapDrawable) {
-                                Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
-                                // 24x24 dp according to android iconography  ->
-                                // http://developer.android.com/design/style/iconography.html#notification
-                                int px = Math.round(TypedValue
-                                        .applyDimension(TypedValue.COMPLEX_UNIT_DIP, 64,
-                                                context.getResources().getDisplayMetrics()));
-                                nb.setLargeIcon(Bitmap.createScaledBitmap(bitmap, px, px, false));
+                            ContactCache.resolve(context, conv.getContact(), false);
+                            final int px = context.getResources().getDimensionPixelSize(
+                                    R.dimen.avatar_size_notification);
+                            final Bitmap avatar = AvatarCache.peek(conv.getContact(), px);
+                            if (avatar == null) {
+                                // never decode on the caller's thread, show it with next update
+                                loadAvatar(context, conv.getContact(), px);
+                            } else if (avatar != Conversation.NO_PHOTO) {
+                                nb.setLargeIcon(avatar);
                             }
                         }
                     }
@@ -550,7 +750,7 @@ public class SmsReceiver extends BroadcastReceiver {
                         PendingIntent.FLAG_UPDATE_CURRENT);
 
                 if (enableNotifications) {
-                    nb.setSmallIcon(PreferencesActivity.getNotificationIcon(context));
+                    nb.setSmallIcon(prefs.notificationIcon);
                     nb.setTicker(context.getString(R.string.new_messages_));
                     nb.setWhen(lastUnreadDate);
                     nb.setContentTitle(context.getString(R.string.new_messages_));
@@ -563,27 +763,17 @@ public class SmsReceiver extends BroadcastReceiver {
             defaultIntent.setFlags(defaultIntent.getFlags() | Intent.FLAG_ACTIVITY_NEW_TASK);
 
             if (enableNotifications) {
-                int[] ledFlash = PreferencesActivity.getLEDflash(context);
-                nb.setLights(PreferencesActivity.getLEDcolor(context), ledFlash[0], ledFlash[1]);
-                final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-                if (text != null) {
-                    final boolean vibrate = p.getBoolean(PreferencesActivity.PREFS_VIBRATE, false);
-                    final String s = p.getString(PreferencesActivity.PREFS_SOUND, null);
-                    Uri sound;
-                    if (s == null || s.length() <= 0) {
-                        sound = null;
-                    } else {
-                        sound = Uri.parse(s);
-                    }
-                    if (vibrate) {
-                        final long[] pattern = PreferencesActivity.getVibratorPattern(context);
+                nb.setLights(prefs.ledColor, prefs.ledOn, prefs.ledOff);
+                if (alert) {
+                    if (prefs.vibrate) {
+                        final long[] pattern = prefs.getVibratorPattern();
                         if (pattern.length == 1 && pattern[0] == 0) {
                             nb.setDefaults(Notification.DEFAULT_VIBRATE);
                         } else {
                             nb.setVibrate(pattern);
                         }
                     }
-                    nb.setSound(sound);
+                    nb.setSound(prefs.sound);
                 }
             }
             Log.d(TAG, "uri: ", uri);
@@ -623,9 +813,8 @@ public class SmsReceiver extends BroadcastReceiver {
             Conversation conv = Conversation.getConversation(context, tid, true);
 
             final NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
-            final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
-            final boolean privateNotification = p.getBoolean(
-                    PreferencesActivity.PREFS_NOTIFICATION_PRIVACY, false);
+            final PreferencesSnapshot p = PreferencesSnapshot.get(context);
+            final boolean privateNotification = p.notificationPrivacy;
             Intent intent;
             if (conv == null) {
                 intent = new Intent(Intent.ACTION_VIEW, null, context, SenderActivity.class);
@@ -637,13 +826,12 @@ public class SmsReceiver extends BroadcastReceiver {
 
             String title = context.getString(R.string.error_sending_failed);
 
-            final int[] ledFlash = PreferencesActivity.getLEDflash(context);
             final NotificationCompat.Builder b = new NotificationCompat.Builder(context, SMSdroid.NOTIFICATION_CHANNEL_ID_FAILD_SENDING_MESSAGE)
                     .setSmallIcon(android.R.drawable.stat_sys_warning)
                     .setTicker(title)
                     .setWhen(date)
                     .setAutoCancel(true)
-                    .setLights(RED, ledFlash[0], ledFlash[1])
+                    .setLights(RED, p.ledOn, p.ledOff)
                     .setContentIntent(PendingIntent.getActivity(context, 0,
                             intent, PendingIntent.FLAG_CANCEL_CURRENT));
             String text;
@@ -659,13 +847,11 @@ public class SmsReceiver extends BroadcastReceiver {
             }
             b.setContentTitle(title);
             b.setContentText(text);
-            final String s = p.getString(PreferencesActivity.PREFS_SOUND, null);
-            if (!TextUtils.isEmpty(s)) {
-                b.setSound(Uri.parse(s));
+            if (p.sound != null) {
+                b.setSound(p.sound);
             }
-            final boolean vibrate = p.getBoolean(PreferencesActivity.PREFS_VIBRATE, false);
-            if (vibrate) {
-                final long[] pattern = PreferencesActivity.getVibratorPattern(context);
+            if (p.vibrate) {
+                final long[] pattern = p.getVibratorPattern();
                 if (pattern.length > 1) {
                     b.setVibrate(pattern);
                 }
@@ -24,6 +24,25 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.ub0r.android.logg0r.Log;
 
@@ -47,7 +66,7 @@ public final class SpamDB {
     /**
      * Version of {@link SQLiteDatabase}.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     /**
      * Table in {@link SQLiteDatabase}.
@@ -55,10 +74,25 @@ public final class SpamDB {
     private static final String DATABASE_TABLE = "numbers";
 
     /**
-     * Key in table.
+     * Key in table: normalized number.
      */
     public static final String KEY_NR = "nr";
 
+    /**
+     * Key in table: number as entered.
+     */
+    public static final String KEY_RAW = "raw";
+
+    /**
+     * Key in table: time the number was added.
+     */
+    public static final String KEY_ADDED = "added";
+
+    /**
+     * Key in table: number of blocked messages.
+     */
+    public static final String KEY_HITS = "hits";
+
     /**
      * Projection.
      */
@@ -67,8 +101,139 @@ public final class SpamDB {
     /**
      * SQL to create {@link SQLiteDatabase}.
      */
-    private static final String DATABASE_CREATE
-            = "CREATE TABLE IF NOT EXISTS numbers (nr varchar(50) )";
+    private static final String DATABASE_CREATE = "CREATE TABLE IF NOT EXISTS numbers ("
+            + KEY_NR + " TEXT PRIMARY KEY NOT NULL, " + KEY_RAW + " TEXT NOT NULL, "
+            + KEY_ADDED + " INTEGER NOT NULL DEFAULT 0, " + KEY_HITS
+            + " INTEGER NOT NULL DEFAULT 0)";
+
+    /**
+     * Table of blocking rules in {@link SQLiteDatabase}.
+     */
+    private static final String RULES_TABLE = "rules";
+
+    /**
+     * Key in rules table: rule, see {@link RuleTrie}.
+     */
+    public static final String KEY_RULE = "rule";
+
+    /**
+     * SQL to create the rules table.
+     */
+    private static final String RULES_CREATE = "CREATE TABLE IF NOT EXISTS " + RULES_TABLE + " ("
+            + KEY_RULE + " TEXT PRIMARY KEY NOT NULL, " + KEY_ADDED
+            + " INTEGER NOT NULL DEFAULT 0)";
+
+    /**
+     * Lock for loading and updating {@link #snapshot}.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Normalized blacklisted numbers, null if not loaded yet. The set is never modified, it is
+     * replaced on each change.
+     */
+    private static volatile Set<String> snapshot = null;
+
+    /**
+     * Blocking rules, loaded with {@link #snapshot}.
+     */
+    private static Set<String> ruleSet = Collections.emptySet();
+
+    /**
+     * Blocking rules compiled from {@link #ruleSet}.
+     */
+    private static volatile RuleTrie rules = RuleTrie.EMPTY;
+
+    /**
+     * Number of lines imported per transaction.
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Listener for progress of import and export.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after a batch of entries.
+         *
+         * @param done number of lines or entries processed so far
+         */
+        void onProgress(int done);
+    }
+
+    /**
+     * Write: insert a number.
+     */
+    private static final int WRITE_INSERT = 0;
+
+    /**
+     * Write: remove a number.
+     */
+    private static final int WRITE_REMOVE = 1;
+
+    /**
+     * Write: count a blocked message.
+     */
+    private static final int WRITE_HIT = 2;
+
+    /**
+     * Write: insert a rule.
+     */
+    private static final int WRITE_RULE_INSERT = 3;
+
+    /**
+     * Write: remove a rule.
+     */
+    private static final int WRITE_RULE_REMOVE = 4;
+
+    /**
+     * Pending write.
+     */
+    private static final class Write {
+
+        /**
+         * Type of write.
+         */
+        final int type;
+
+        /**
+         * Number or rule.
+         */
+        final String nr;
+
+        /**
+         * Default constructor.
+         *
+         * @param type type of write
+         * @param nr   number or rule
+         */
+        Write(final int type, final String nr) {
+            this.type = type;
+            this.nr = nr;
+        }
+    }
+
+    /**
+     * Writes not yet done.
+     */
+    private static final ArrayList<Write> PENDING = new ArrayList<>();
+
+    /**
+     * Runs all writes in background.
+     */
+    private static final ExecutorService WRITER = new ThreadPoolExecutor(1, 1, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, "SpamDB");
+        }
+    });
+
+    /**
+     * Process wide instance, null if not opened yet.
+     */
+    private static SpamDB instance = null;
 
     /**
      * {@link DatabaseHelper}.
@@ -85,10 +250,25 @@ public final class SpamDB {
      *
      * @param context {@link Context}
      */
-    public SpamDB(final Context context) {
+    private SpamDB(final Context context) {
         dbHelper = new DatabaseHelper(context);
     }
 
+    /**
+     * Get the process wide instance. The database is opened on first use and never closed.
+     *
+     * @param context {@link Context}
+     * @return {@link SpamDB}
+     */
+    public static synchronized SpamDB getInstance(final Context context) {
+        if (instance == null) {
+            final SpamDB spamDB = new SpamDB(context.getApplicationContext());
+            spamDB.open();
+            instance = spamDB;
+        }
+        return instance;
+    }
+
     /**
      * {@link DatabaseHelper} for opening the database.
      *
@@ -108,166 +288,701 @@ public final class SpamDB {
         @Override
         public void onCreate(final SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(RULES_CREATE);
         }
 
         @Override
         public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-            Log.w(TAG, "Upgrading database from version ", oldVersion, " to ", newVersion
-                    + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS numbers");
+            Log.w(TAG, "Upgrading database from version ", oldVersion, " to ", newVersion);
+            if (oldVersion < 1 || oldVersion > 2) {
+                Log.w(TAG, "unknown version, destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS numbers");
+                db.execSQL("DROP TABLE IF EXISTS " + RULES_TABLE);
+                onCreate(db);
+                return;
+            }
+            if (oldVersion == 1) {
+                upgradeFromV1(db);
+            }
+            // v3: add rules
+            db.execSQL(RULES_CREATE);
+        }
+
+        /**
+         * Move all numbers from the v1 table into a v2 table. Numbers normalizing to the same
+         * key are merged. Runs inside the upgrade's transaction.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        private void upgradeFromV1(final SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE numbers RENAME TO numbers_v1");
             onCreate(db);
+            final long now = System.currentTimeMillis();
+            final ContentValues cv = new ContentValues(3);
+            final Cursor cursor = db.query("numbers_v1", PROJECTION, null, null, null, null,
+                    null);
+            int i = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    final String nr = cursor.getString(0);
+                    if (nr == null) {
+                        continue;
+                    }
+                    cv.put(KEY_NR, normalize(nr));
+                    cv.put(KEY_RAW, nr);
+                    cv.put(KEY_ADDED, now);
+                    if (db.insertWithOnConflict(DATABASE_TABLE, null, cv,
+                            SQLiteDatabase.CONFLICT_IGNORE) >= 0L) {
+                        ++i;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.execSQL("DROP TABLE numbers_v1");
+            Log.i(TAG, "migrated numbers: ", i);
         }
     }
 
     /**
-     * Open database.
-     *
-     * @return {@link SpamDB}
+     * Open database. Readers do not block writers and vice versa.
      */
-    public SpamDB open() {
+    private void open() {
         db = dbHelper.getWritableDatabase();
-        return this;
+        db.enableWriteAheadLogging();
     }
 
     /**
-     * Close database.
+     * Insert a number into the database, the snapshot is not updated.
+     *
+     * @param nr number
+     * @return id in database
      */
-    public void close() {
-        dbHelper.close();
+    private long insert(final String nr) {
+        ContentValues initialValues = new ContentValues();
+        initialValues.put(KEY_NR, normalize(nr));
+        initialValues.put(KEY_RAW, nr);
+        initialValues.put(KEY_ADDED, System.currentTimeMillis());
+        return db.insertWithOnConflict(DATABASE_TABLE, null, initialValues,
+                SQLiteDatabase.CONFLICT_IGNORE);
     }
 
     /**
-     * Insert a number into the spam database.
+     * Get a column of all entries from blacklist.
+     *
+     * @param column column
+     * @return array of entries
+     */
+    private String[] getAllEntries(final String column) {
+        final Cursor cursor = db.query(DATABASE_TABLE, new String[]{column}, null, null, null,
+                null, null);
+        if (cursor == null) {
+            return null;
+        }
+        final String[] ret = new String[cursor.getCount()];
+        if (cursor.moveToFirst()) {
+            int i = 0;
+            do {
+                ret[i] = cursor.getString(0);
+                ++i;
+            } while (cursor.moveToNext());
+        }
+        if (!cursor.isClosed()) {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Remove a number from the database, the snapshot is not updated.
      *
      * @param nr number
-     * @return id in database
      */
-    public long insertNr(final String nr) {
-        if (nr == null) {
-            return -1L;
+    private void delete(final String nr) {
+        db.delete(DATABASE_TABLE, KEY_NR + " = ?", new String[]{normalize(nr)});
+    }
+
+    /**
+     * Insert a blocking rule into the database.
+     *
+     * @param rule rule, see {@link RuleTrie}
+     */
+    private void insertRule(final String rule) {
+        final ContentValues cv = new ContentValues(2);
+        cv.put(KEY_RULE, rule);
+        cv.put(KEY_ADDED, System.currentTimeMillis());
+        db.insertWithOnConflict(RULES_TABLE, null, cv, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Remove a blocking rule from the database.
+     *
+     * @param rule rule
+     */
+    private void deleteRule(final String rule) {
+        db.delete(RULES_TABLE, KEY_RULE + " = ?", new String[]{rule});
+    }
+
+    /**
+     * Get all blocking rules.
+     *
+     * @return array of rules
+     */
+    private String[] getAllRules() {
+        final Cursor cursor = db.query(RULES_TABLE, new String[]{KEY_RULE}, null, null, null,
+                null, null);
+        if (cursor == null) {
+            return null;
         }
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_NR, nr);
-        return db.insert(DATABASE_TABLE, null, initialValues);
+        final String[] ret = new String[cursor.getCount()];
+        int i = 0;
+        while (cursor.moveToNext()) {
+            ret[i] = cursor.getString(0);
+            ++i;
+        }
+        cursor.close();
+        return ret;
     }
 
     /**
-     * Check if number is blacklisted.
+     * Count a blocked message. Nothing is done if the number is not listed itself.
      *
      * @param nr number
-     * @return true if number is blacklisted
      */
-    public boolean isInDB(final String nr) {
-        Log.d(TAG, "isInDB(", nr, ")");
+    public void countHit(final String nr) {
         if (nr == null) {
+            return;
+        }
+        db.execSQL("UPDATE " + DATABASE_TABLE + " SET " + KEY_HITS + " = " + KEY_HITS
+                + " + 1 WHERE " + KEY_NR + " = ?", new Object[]{normalize(nr)});
+    }
+
+    /**
+     * Normalize a number. Formatting of phone numbers is removed, alphanumeric senders are
+     * compared case insensitive.
+     *
+     * @param nr number
+     * @return normalized number
+     */
+    static String normalize(final String nr) {
+        final int l = nr.length();
+        final StringBuilder sb = new StringBuilder(l);
+        boolean phone = false;
+        for (int i = 0; i < l; i++) {
+            final char c = nr.charAt(i);
+            if (c >= '0' && c <= '9' || c == '+' || c == '*' || c == '#') {
+                phone |= c >= '0' && c <= '9';
+                sb.append(c);
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')' && c != '/') {
+                // not a phone number
+                return nr.trim().toLowerCase(Locale.ROOT);
+            }
+        }
+        return phone ? sb.toString() : nr.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the blacklist snapshot, load it if needed.
+     *
+     * @param context {@link Context}
+     * @return normalized blacklisted numbers
+     */
+    private static Set<String> getSnapshot(final Context context) {
+        Set<String> ret = snapshot;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (LOCK) {
+            if (snapshot == null) {
+                try {
+                    final SpamDB spamDB = getInstance(context);
+                    final String[] entries = spamDB.getAllEntries(KEY_NR);
+                    final String[] r = spamDB.getAllRules();
+                    final HashSet<String> set = new HashSet<>();
+                    if (entries != null) {
+                        Collections.addAll(set, entries);
+                    }
+                    final HashSet<String> rSet = new HashSet<>();
+                    if (r != null) {
+                        Collections.addAll(rSet, r);
+                    }
+                    Log.d(TAG, "loaded blacklist: ", set.size(), ", rules: ", rSet.size());
+                    setRules(rSet);
+                    snapshot = Collections.unmodifiableSet(set);
+                } catch (SQLiteException e) {
+                    // try again next time
+                    Log.e(TAG, "error opening spam db, continue with empty list");
+                    return Collections.emptySet();
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Update the blacklist snapshot if it is loaded.
+     *
+     * @param nr  number
+     * @param add add or remove the number
+     */
+    private static void updateSnapshot(final String nr, final boolean add) {
+        synchronized (LOCK) {
+            if (snapshot == null) {
+                return;
+            }
+            final HashSet<String> set = new HashSet<>(snapshot);
+            if (add) {
+                set.add(normalize(nr));
+            } else {
+                set.remove(normalize(nr));
+            }
+            snapshot = Collections.unmodifiableSet(set);
+        }
+    }
+
+    /**
+     * Replace the blocking rules and compile them.
+     *
+     * @param r rules
+     */
+    private static void setRules(final Set<String> r) {
+        ruleSet = Collections.unmodifiableSet(r);
+        rules = new RuleTrie(r);
+    }
+
+    /**
+     * Get all blocking rules.
+     *
+     * @param context {@link Context}
+     * @return rules, see {@link RuleTrie}
+     */
+    public static String[] getRules(final Context context) {
+        synchronized (LOCK) {
+            getSnapshot(context);
+            return ruleSet.toArray(new String[ruleSet.size()]);
+        }
+    }
+
+    /**
+     * Add a blocking rule. The rule is used at once, the database is written in background.
+     *
+     * @param context {@link Context}
+     * @param rule    rule, see {@link RuleTrie}
+     * @return false, if the rule is invalid
+     */
+    public static boolean addRule(final Context context, final String rule) {
+        if (!RuleTrie.isValid(rule)) {
             return false;
         }
-        final Cursor cursor = db.query(DATABASE_TABLE, PROJECTION, KEY_NR + " = ?",
-                new String[]{nr}, null, null, null);
-        final boolean ret = cursor.moveToFirst();
-        if (!cursor.isClosed()) {
-            cursor.close();
+        synchronized (LOCK) {
+            getSnapshot(context);
+            if (!ruleSet.contains(rule)) {
+                final HashSet<String> r = new HashSet<>(ruleSet);
+                r.add(rule);
+                setRules(r);
+            }
         }
-        return ret;
+        write(context, new Write(WRITE_RULE_INSERT, rule));
+        Log.d(TAG, "Added rule ", rule);
+        return true;
+    }
+
+    /**
+     * Remove a blocking rule. The database is written in background.
+     *
+     * @param context {@link Context}
+     * @param rule    rule
+     */
+    public static void removeRule(final Context context, final String rule) {
+        if (rule == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            getSnapshot(context);
+            if (ruleSet.contains(rule)) {
+                final HashSet<String> r = new HashSet<>(ruleSet);
+                r.remove(rule);
+                setRules(r);
+            }
+        }
+        write(context, new Write(WRITE_RULE_REMOVE, rule));
+        Log.d(TAG, "Removed rule ", rule);
     }
 
     /**
-     * Get all blacklisted numbers.
+     * Import a blacklist. The list is read line by line, one number or rule per line. Empty lines
+     * and lines starting with '#' are ignored. For CSV files the first column is used. Entries
+     * already listed are skipped. Each batch of lines is committed on its own, batches committed
+     * before a failure are kept. Do not call from the main thread.
      *
-     * @return blacklist
+     * @param context  {@link Context}
+     * @param in       {@link Reader} to read from
+     * @param listener {@link ProgressListener}, may be null
+     * @return number of imported numbers and rules
+     * @throws IOException if reading fails
      */
-    public int getEntrieCount() {
-        final Cursor cursor = db.rawQuery("SELECT COUNT(nr) FROM " + DATABASE_TABLE, null);
-        Log.d(TAG, cursor.toString());
+    public static int importList(final Context context, final Reader in,
+                                 final ProgressListener listener) throws IOException {
+        final SQLiteDatabase db = getInstance(context).db;
+        final BufferedReader reader = new BufferedReader(in);
+        final HashSet<String> numbers = new HashSet<>();
+        final HashSet<String> newRules = new HashSet<>();
+        final SQLiteStatement insertNr = db.compileStatement("INSERT OR IGNORE INTO "
+                + DATABASE_TABLE + " (" + KEY_NR + ", " + KEY_RAW + ", " + KEY_ADDED
+                + ") VALUES (?, ?, ?)");
+        final SQLiteStatement insertRule = db.compileStatement("INSERT OR IGNORE INTO "
+                + RULES_TABLE + " (" + KEY_RULE + ", " + KEY_ADDED + ") VALUES (?, ?)");
+        final long now = System.currentTimeMillis();
+        int lines = 0;
         int ret = 0;
-        if (cursor.moveToFirst()) {
-            ret = cursor.getInt(0);
+        db.beginTransaction();
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                ++lines;
+                final String entry = parseLine(line);
+                if (entry == null) {
+                    Log.d(TAG, "skip line: ", lines);
+                } else if (isRule(entry)) {
+                    if (RuleTrie.isValid(entry) && newRules.add(entry)) {
+                        insertRule.bindString(1, entry);
+                        insertRule.bindLong(2, now);
+                        if (insertRule.executeInsert() >= 0L) {
+                            ++ret;
+                        }
+                    }
+                } else {
+                    final String n = normalize(entry);
+                    if (numbers.add(n)) {
+                        insertNr.bindString(1, n);
+                        insertNr.bindString(2, entry);
+                        insertNr.bindLong(3, now);
+                        if (insertNr.executeInsert() >= 0L) {
+                            ++ret;
+                        }
+                    }
+                }
+                if (lines % BATCH_SIZE == 0) {
+                    db.setTransactionSuccessful();
+                    db.endTransaction();
+                    addToSnapshot(numbers, newRules);
+                    numbers.clear();
+                    newRules.clear();
+                    if (listener != null) {
+                        listener.onProgress(lines);
+                    }
+                    db.beginTransaction();
+                }
+                line = reader.readLine();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (db.inTransaction()) {
+                // commits the last batch, rolls it back on failure
+                db.endTransaction();
+            }
+            insertNr.close();
+            insertRule.close();
         }
-        if (!cursor.isClosed()) {
-            cursor.close();
+        addToSnapshot(numbers, newRules);
+        if (listener != null) {
+            listener.onProgress(lines);
         }
+        Log.i(TAG, "imported: ", ret, " from lines: ", lines);
         return ret;
     }
 
     /**
-     * Get all entries from blacklist.
+     * Add committed numbers and rules to the blacklist snapshot if it is loaded.
      *
-     * @return array of entries
+     * @param numbers  normalized numbers
+     * @param newRules rules
      */
-    public String[] getAllEntries() {
-        final Cursor cursor = db.query(DATABASE_TABLE, PROJECTION, null, null, null, null,
-                null);
-        if (cursor == null) {
+    private static void addToSnapshot(final Set<String> numbers, final Set<String> newRules) {
+        synchronized (LOCK) {
+            if (snapshot == null || numbers.isEmpty() && newRules.isEmpty()) {
+                return;
+            }
+            final HashSet<String> set = new HashSet<>(snapshot);
+            set.addAll(numbers);
+            snapshot = Collections.unmodifiableSet(set);
+            final HashSet<String> r = new HashSet<>(ruleSet);
+            r.addAll(newRules);
+            setRules(r);
+        }
+    }
+
+    /**
+     * Get the entry from a line of an imported list.
+     *
+     * @param line line
+     * @return entry or null if the line holds none
+     */
+    private static String parseLine(final String line) {
+        String entry = line;
+        final int i = entry.indexOf(',');
+        if (i >= 0) {
+            entry = entry.substring(0, i);
+        }
+        entry = entry.trim();
+        if (entry.length() > 1 && entry.charAt(0) == '"'
+                && entry.charAt(entry.length() - 1) == '"') {
+            entry = entry.substring(1, entry.length() - 1).trim();
+        }
+        if (entry.length() == 0 || entry.charAt(0) == '#') {
             return null;
         }
-        final String[] ret = new String[cursor.getCount()];
-        if (cursor.moveToFirst()) {
-            int i = 0;
-            do {
-                ret[i] = cursor.getString(0);
-                Log.d(TAG, "spam: ", ret[i]);
-                ++i;
-            } while (cursor.moveToNext());
+        return entry;
+    }
+
+    /**
+     * @param entry entry of an imported list
+     * @return true, if the entry is a blocking rule
+     */
+    private static boolean isRule(final String entry) {
+        return entry.indexOf('*') >= 0 || entry.indexOf('?') >= 0
+                || entry.startsWith(RuleTrie.SHORT_CODE);
+    }
+
+    /**
+     * Export the blacklist: all numbers as entered and all rules, one per line. The result can
+     * be read by {@link #importList(Context, Reader, ProgressListener)}. Do not call from the main
+     * thread.
+     *
+     * @param context  {@link Context}
+     * @param out      {@link Writer} to write to
+     * @param listener {@link ProgressListener}, may be null
+     * @return number of exported numbers and rules
+     * @throws IOException if writing fails
+     */
+    public static int exportList(final Context context, final Writer out,
+                                 final ProgressListener listener) throws IOException {
+        final SQLiteDatabase db = getInstance(context).db;
+        final BufferedWriter writer = new BufferedWriter(out);
+        writer.write("# SMSdroid blacklist\n");
+        int ret = exportColumn(db, DATABASE_TABLE, KEY_RAW, writer, listener, 0);
+        ret = exportColumn(db, RULES_TABLE, KEY_RULE, writer, listener, ret);
+        writer.flush();
+        if (listener != null) {
+            listener.onProgress(ret);
         }
-        if (!cursor.isClosed()) {
+        Log.i(TAG, "exported: ", ret);
+        return ret;
+    }
+
+    /**
+     * Write a column of a table, one value per line.
+     *
+     * @param db       {@link SQLiteDatabase}
+     * @param table    table
+     * @param column   column
+     * @param writer   {@link Writer}
+     * @param listener {@link ProgressListener}, may be null
+     * @param done     number of entries written before
+     * @return number of entries written including those written before
+     * @throws IOException if writing fails
+     */
+    private static int exportColumn(final SQLiteDatabase db, final String table,
+                                    final String column, final Writer writer,
+                                    final ProgressListener listener, final int done)
+            throws IOException {
+        int ret = done;
+        final Cursor cursor = db.query(table, new String[]{column}, null, null, null, null,
+                null);
+        if (cursor == null) {
+            return ret;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                writer.write(cursor.getString(0));
+                writer.write('\n');
+                ++ret;
+                if (listener != null && ret % BATCH_SIZE == 0) {
+                    listener.onProgress(ret);
+                }
+            }
+        } finally {
             cursor.close();
         }
         return ret;
     }
 
     /**
-     * Remove number from blacklist.
+     * Queue a write. Writes are done in background, all writes queued in the meantime are done in
+     * a single transaction.
      *
-     * @param nr number
+     * @param context {@link Context}
+     * @param w       {@link Write}
      */
-    public void removeNr(final String nr) {
-        if (nr == null) {
-            return;
+    private static void write(final Context context, final Write w) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (PENDING) {
+            PENDING.add(w);
+            if (PENDING.size() > 1) {
+                // flush is scheduled already
+                return;
+            }
         }
-        db.delete(DATABASE_TABLE, KEY_NR + " = ?", new String[]{nr});
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Write[] writes;
+                synchronized (PENDING) {
+                    writes = PENDING.toArray(new Write[PENDING.size()]);
+                    PENDING.clear();
+                }
+                try {
+                    getInstance(appContext).write(writes);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "error writing spam db, dropped writes: ", writes.length, e);
+                }
+            }
+        });
     }
 
-    public static String[] getBlacklist(final Context context) {
-        String[] blacklist;
+    /**
+     * Do writes in a single transaction.
+     *
+     * @param writes {@link Write}s
+     */
+    private void write(final Write[] writes) {
+        db.beginTransaction();
         try {
-            SpamDB spamDB = new SpamDB(context);
-            spamDB.open();
-            blacklist = spamDB.getAllEntries();
-            spamDB.close();
-        } catch (SQLiteException e) {
-            Log.e(TAG, "error opening spam db, continue with empty list");
-            blacklist = new String[0];
+            for (Write w : writes) {
+                switch (w.type) {
+                    case WRITE_INSERT:
+                        insert(w.nr);
+                        break;
+                    case WRITE_REMOVE:
+                        delete(w.nr);
+                        break;
+                    case WRITE_HIT:
+                        countHit(w.nr);
+                        break;
+                    case WRITE_RULE_INSERT:
+                        insertRule(w.nr);
+                        break;
+                    case WRITE_RULE_REMOVE:
+                        deleteRule(w.nr);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        return blacklist;
+        Log.d(TAG, "writes: ", writes.length);
     }
 
+    /**
+     * Count a message blocked by the blacklist. Written in background. Only numbers listed
+     * themselves are counted, rules have no hit count.
+     *
+     * @param context {@link Context}
+     * @param number  number
+     */
+    public static void countHit(final Context context, final String number) {
+        if (number != null) {
+            write(context, new Write(WRITE_HIT, number));
+        }
+    }
+
+    /**
+     * Load the blacklist in background.
+     *
+     * @param context  {@link Context}
+     * @param onLoaded run on the main thread once the blacklist was loaded, may be null
+     */
+    public static void preload(final Context context, final Runnable onLoaded) {
+        if (snapshot != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                getSnapshot(appContext);
+                if (onLoaded != null) {
+                    new Handler(Looper.getMainLooper()).post(onLoaded);
+                }
+            }
+        });
+    }
+
+    /**
+     * Check if number is blacklisted without loading the blacklist. Safe to call from the main
+     * thread.
+     *
+     * @param number number
+     * @return true if number is blacklisted, false if it is not or the blacklist is not loaded
+     */
+    public static boolean peekBlacklisted(final String number) {
+        final Set<String> s = snapshot;
+        if (number == null || s == null) {
+            return false;
+        }
+        final String n = normalize(number);
+        return s.contains(n) || rules.matches(n);
+    }
+
+    /**
+     * Check if number is blacklisted, either listed itself or matched by a rule. No disk I/O is
+     * done once the blacklist is loaded.
+     *
+     * @param context {@link Context}
+     * @param number  number
+     * @return true if number is blacklisted
+     */
     public static boolean isBlacklisted(final Context context, final String number) {
-        try {
-            SpamDB spamDB = new SpamDB(context);
-            spamDB.open();
-            boolean result = spamDB.isInDB(number);
-            spamDB.close();
-            return result;
-        } catch (SQLiteException e) {
-            Log.e(TAG, "error opening spam db, continue with empty list");
+        if (number == null) {
             return false;
         }
+        final String n = normalize(number);
+        return getSnapshot(context).contains(n) || rules.matches(n);
     }
 
-    public static void toggleBlacklist(final Context context, final String number) {
-        try {
-            final SpamDB spamDB = new SpamDB(context);
-            spamDB.open();
-            if (!spamDB.isInDB(number)) {
-                spamDB.insertNr(number);
-                Log.d(TAG, "Added ", number, " to spam list");
-            } else {
-                spamDB.removeNr(number);
-                Log.d(TAG, "Removed ", number, " from spam list");
-            }
-            spamDB.close();
-        } catch (SQLiteException e) {
-            Log.e(TAG, "error opening spam db, doing nothing");
+    /**
+     * Add a number to or remove it from blacklist. The blacklist is loaded and updated in
+     * background, the database is written afterwards. Nothing is changed if the blacklist can not
+     * be loaded.
+     *
+     * @param context   {@link Context}
+     * @param number    number
+     * @param onToggled run on the main thread once the blacklist was updated, may be null
+     */
+    public static void toggleBlacklist(final Context context, final String number,
+                                       final Runnable onToggled) {
+        if (number == null) {
+            return;
         }
+        final Context appContext = context.getApplicationContext();
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean blacklisted;
+                synchronized (LOCK) {
+                    getSnapshot(appContext);
+                    if (snapshot == null) {
+                        Log.e(TAG, "blacklist not loaded, not toggling ", number);
+                        return;
+                    }
+                    // rules are not toggled
+                    blacklisted = snapshot.contains(normalize(number));
+                    updateSnapshot(number, !blacklisted);
+                }
+                if (!blacklisted) {
+                    write(appContext, new Write(WRITE_INSERT, number));
+                    Log.d(TAG, "Added ", number, " to spam list");
+                } else {
+                    write(appContext, new Write(WRITE_REMOVE, number));
+                    Log.d(TAG, "Removed ", number, " from spam list");
+                }
+                if (onToggled != null) {
+                    new Handler(Looper.getMainLooper()).post(onToggled);
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import de.ub0r.android.logg0r.Log;
+
+/**
+ * Summary of unread messages per thread. The index is loaded once and updated incrementally on
+ * new SMS and read messages. New MMS and all other changes, including those made by other apps,
+ * invalidate it. Notifications about our own incremental changes are ignored.
+ *
+ * @author flx
+ */
+final class UnreadIndex {
+
+    /**
+     * Tag for logging.
+     */
+    static final String TAG = "uix";
+
+    /**
+     * {@link Uri} to get messages from.
+     */
+    private static final Uri URI_SMS = Uri.parse("content://sms/");
+
+    /**
+     * {@link Uri} to get messages from.
+     */
+    private static final Uri URI_MMS = Uri.parse("content://mms/");
+
+    /**
+     * {@link Uri} to observe for changes.
+     */
+    private static final Uri URI_CHANGES = Uri.parse("content://mms-sms/");
+
+    /**
+     * Reload the index after this time, catching changes missed by the observer.
+     */
+    private static final long MAX_AGE = 60L * 60L * 1000L;
+
+    /**
+     * Changes observed this long after starting a change of our own are caused by it.
+     */
+    private static final long OWN_CHANGE_WINDOW = 2000L;
+
+    /**
+     * Unread messages of a single thread.
+     */
+    private static final class Summary {
+
+        /**
+         * Number of unread messages.
+         */
+        int count = 0;
+
+        /**
+         * Number of unread MMS.
+         */
+        int mmsCount = 0;
+
+        /**
+         * Date of newest unread message.
+         */
+        long date = 0L;
+
+        /**
+         * Body of newest unread message, null for MMS.
+         */
+        String body = null;
+
+        /**
+         * Date of newest unread SMS.
+         */
+        long smsDate = 0L;
+
+        /**
+         * Body of newest unread SMS.
+         */
+        String smsBody = null;
+
+        /**
+         * Add a message.
+         *
+         * @param d   date
+         * @param b   body, null for MMS
+         * @param mms is the message a MMS?
+         */
+        void add(final long d, final String b, final boolean mms) {
+            ++count;
+            if (mms) {
+                ++mmsCount;
+            } else if (d > smsDate) {
+                smsDate = d;
+                smsBody = b;
+            }
+            if (d > date) {
+                date = d;
+                body = mms ? null : b;
+            }
+        }
+    }
+
+    /**
+     * Unread messages of all threads.
+     */
+    private static final class Index {
+
+        /**
+         * Unread messages by thread id.
+         */
+        final SparseArray<Summary> threads = new SparseArray<>();
+
+        /**
+         * Number of unread messages.
+         */
+        int count = 0;
+
+        /**
+         * Number of unread MMS.
+         */
+        int mmsCount = 0;
+
+        /**
+         * Thread holding the newest unread message.
+         */
+        Summary newest = null;
+
+        /**
+         * Thread holding the newest unread SMS.
+         */
+        Summary newestSms = null;
+
+        /**
+         * Add an unread message.
+         *
+         * @param threadId thread id
+         * @param date     date
+         * @param body     body, null for MMS
+         * @param mms      is the message a MMS?
+         */
+        void add(final int threadId, final long date, final String body, final boolean mms) {
+            Summary s = threads.get(threadId);
+            if (s == null) {
+                s = new Summary();
+                threads.put(threadId, s);
+            }
+            s.add(date, body, mms);
+            ++count;
+            if (mms) {
+                ++mmsCount;
+            }
+            if (newest == null || s.date > newest.date) {
+                newest = s;
+            }
+            if (!mms && (newestSms == null || s.smsDate > newestSms.smsDate)) {
+                newestSms = s;
+            }
+        }
+
+        /**
+         * Remove all unread messages of a thread.
+         *
+         * @param threadId thread id
+         */
+        void remove(final int threadId) {
+            final int i = threads.indexOfKey(threadId);
+            if (i < 0) {
+                return;
+            }
+            final Summary s = threads.valueAt(i);
+            threads.removeAt(i);
+            count -= s.count;
+            mmsCount -= s.mmsCount;
+            if (s == newest || s == newestSms) {
+                newest = null;
+                newestSms = null;
+                for (int j = threads.size() - 1; j >= 0; --j) {
+                    final Summary o = threads.valueAt(j);
+                    if (newest == null || o.date > newest.date) {
+                        newest = o;
+                    }
+                    if (o.smsDate > 0L && (newestSms == null || o.smsDate > newestSms.smsDate)) {
+                        newestSms = o;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Check whether the newest unread message matches the assumed one.
+         *
+         * @param text text of the last assumed unread message, null if unknown
+         * @param mms  is the last assumed unread message a MMS?
+         * @return true if it matches
+         */
+        boolean matches(final String text, final boolean mms) {
+            if (mms) {
+                return mmsCount > 0;
+            } else if (text == null) {
+                return true;
+            } else {
+                return newestSms != null && newestSms.smsBody != null
+                        && newestSms.smsBody.startsWith(text);
+            }
+        }
+
+        /**
+         * @return [thread id (-1 if there are more), number of unread messages]
+         */
+        int[] getUnread() {
+            final int tid;
+            if (threads.size() == 0) {
+                tid = 0;
+            } else if (threads.size() == 1) {
+                tid = threads.keyAt(0);
+            } else {
+                tid = -1;
+            }
+            return new int[]{tid, count};
+        }
+    }
+
+    /**
+     * Current index.
+     */
+    private static Index index = new Index();
+
+    /**
+     * Time of last full load, 0 if invalid.
+     */
+    private static long loaded = 0L;
+
+    /**
+     * Incremented on every change to the index.
+     */
+    private static int generation = 0;
+
+    /**
+     * Invalidates the index on changes to any message, null if not registered yet.
+     */
+    private static ContentObserver observer = null;
+
+    /**
+     * Changes observed before this time are caused by ourselves and ignored.
+     */
+    private static long ownChangeUntil = 0L;
+
+    /**
+     * Private constructor.
+     */
+    private UnreadIndex() {
+    }
+
+    /**
+     * Get unread messages. The database is queried without holding the lock.
+     *
+     * @param cr   {@link ContentResolver}
+     * @param text text of the last assumed unread message, null if unknown
+     * @param mms  is the last assumed unread message a MMS?
+     * @return [thread id (-1 if there are more), number of unread messages (-1 if text does not
+     * match newest message)]
+     */
+    static int[] get(final ContentResolver cr, final String text, final boolean mms) {
+        if (mms) {
+            // new MMS are never added to the index, it can't tell whether it knows them
+            invalidate();
+        }
+        final boolean reloaded = load(cr);
+        synchronized (UnreadIndex.class) {
+            if (index.matches(text, mms)) {
+                return index.getUnread();
+            }
+        }
+        if (reloaded) {
+            return new int[]{-1, -1};
+        }
+        // the index might be outdated, the message might not be in the database yet
+        invalidate();
+        load(cr);
+        synchronized (UnreadIndex.class) {
+            if (index.matches(text, mms)) {
+                return index.getUnread();
+            }
+        }
+        return new int[]{-1, -1};
+    }
+
+    /**
+     * @return date of the newest unread message
+     */
+    static synchronized long getNewestDate() {
+        return index.newest == null ? 0L : index.newest.date;
+    }
+
+    /**
+     * @return body of the newest unread message, null for MMS
+     */
+    static synchronized String getNewestBody() {
+        return index.newest == null ? null : index.newest.body;
+    }
+
+    /**
+     * Load the index if needed.
+     *
+     * @param cr {@link ContentResolver}
+     * @return true, if the index was loaded
+     */
+    private static boolean load(final ContentResolver cr) {
+        final long now = SystemClock.elapsedRealtime();
+        final int g;
+        synchronized (UnreadIndex.class) {
+            if (loaded > 0L && now - loaded < MAX_AGE) {
+                return false;
+            }
+            g = generation;
+            if (observer == null) {
+                observer = new ContentObserver(null) {
+                    @Override
+                    public void onChange(final boolean selfChange) {
+                        onExternalChange();
+                    }
+                };
+                try {
+                    cr.registerContentObserver(URI_CHANGES, true, observer);
+                } catch (SecurityException e) {
+                    Log.e(TAG, "unable to observe messages", e);
+                }
+            }
+        }
+        Log.d(TAG, "load()");
+        final Index ret = new Index();
+        Cursor cursor = cr.query(URI_SMS, Message.PROJECTION, Message.SELECTION_READ_UNREAD,
+                Message.SELECTION_UNREAD, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    ret.add(cursor.getInt(Message.INDEX_THREADID),
+                            cursor.getLong(Message.INDEX_DATE),
+                            cursor.getString(Message.INDEX_BODY), false);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        cursor = cr.query(URI_MMS, Message.PROJECTION_READ, Message.SELECTION_READ_UNREAD,
+                Message.SELECTION_UNREAD, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    long d = cursor.getLong(Message.INDEX_DATE);
+                    if (d < ConversationListActivity.MIN_DATE) {
+                        d *= ConversationListActivity.MILLIS;
+                    }
+                    ret.add(cursor.getInt(Message.INDEX_THREADID), d, null, true);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "unread: ", ret.count, " in ", ret.threads.size(), " threads");
+        synchronized (UnreadIndex.class) {
+            index = ret;
+            // changes made while loading may be missing, load again on next use
+            loaded = g == generation ? now : 0L;
+        }
+        return true;
+    }
+
+    /**
+     * Announce a change of our own, followed by {@link #onNewSms(int, long, String)} or
+     * {@link #onThreadRead(int)}. Notifications about it do not invalidate the index.
+     */
+    static synchronized void beginChange() {
+        ownChangeUntil = SystemClock.elapsedRealtime() + OWN_CHANGE_WINDOW;
+    }
+
+    /**
+     * Any message changed. Invalidate the index unless the change was announced by
+     * {@link #beginChange()}. Changes made by other apps in the meantime are caught by
+     * {@link #MAX_AGE}.
+     */
+    private static synchronized void onExternalChange() {
+        if (SystemClock.elapsedRealtime() < ownChangeUntil) {
+            Log.d(TAG, "ignore own change");
+            return;
+        }
+        invalidate();
+    }
+
+    /**
+     * Add a new unread SMS. Nothing is done if the index is not loaded yet.
+     *
+     * @param threadId thread id
+     * @param date     date
+     * @param body     body
+     */
+    static synchronized void onNewSms(final int threadId, final long date, final String body) {
+        ++generation;
+        if (loaded > 0L) {
+            index.add(threadId, date, body, false);
+        }
+    }
+
+    /**
+     * All messages of a thread were marked as read.
+     *
+     * @param threadId thread id
+     */
+    static synchronized void onThreadRead(final int threadId) {
+        ++generation;
+        if (loaded > 0L) {
+            index.remove(threadId);
+        }
+    }
+
+    /**
+     * Invalidate the index. It is loaded again on next use.
+     */
+    static synchronized void invalidate() {
+        ++generation;
+        loaded = 0L;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConversationRowKey}.
+ *
+ * @author flx
+ */
+public class ConversationRowKeyTest {
+
+    /**
+     * Date of the last message.
+     */
+    private static final long DATE = 1400000000000L;
+
+    /**
+     * A key for an unread message with body.
+     */
+    private static final ConversationRowKey KEY = new ConversationRowKey(DATE, 0, true, 3,
+            "Alice", true, false);
+
+    @Test
+    public void testMatches() {
+        assertTrue(KEY.matches(DATE, 0, true, 3, "Alice", true, false));
+        assertTrue(KEY.matches(DATE, 0, true, 3, new String("Alice"), true, false));
+    }
+
+    @Test
+    public void testChanged() {
+        assertFalse(KEY.matches(DATE + 1, 0, true, 3, "Alice", true, false));
+        assertFalse(KEY.matches(DATE, 1, true, 3, "Alice", true, false));
+        assertFalse(KEY.matches(DATE, 0, false, 3, "Alice", true, false));
+        assertFalse(KEY.matches(DATE, 0, true, 4, "Alice", true, false));
+        assertFalse(KEY.matches(DATE, 0, true, 3, "Bob", true, false));
+        assertFalse(KEY.matches(DATE, 0, true, 3, null, true, false));
+        // the date label turned from time to date
+        assertFalse(KEY.matches(DATE, 0, true, 3, "Alice", false, false));
+        assertFalse(KEY.matches(DATE, 0, true, 3, "Alice", true, true));
+    }
+
+    @Test
+    public void testNullName() {
+        final ConversationRowKey k = new ConversationRowKey(DATE, 1, false, 0, null, false, true);
+        assertTrue(k.matches(DATE, 1, false, 0, null, false, true));
+        assertFalse(k.matches(DATE, 1, false, 0, "Alice", false, true));
+    }
+
+    @Test
+    public void testShowsSameMessage() {
+        assertTrue(KEY.showsSameMessage(DATE, true));
+        assertFalse(KEY.showsSameMessage(DATE + 1, true));
+        // the body was not loaded yet or the message turned into a MMS
+        assertFalse(KEY.showsSameMessage(DATE, false));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing forwarded messages: {@link ForwardedSmsParser} and the regular expressions used
+ * before. Benchmarks are not run with the unit tests.
+ *
+ * @author flx
+ */
+@Ignore("benchmark")
+public class ForwardedSmsParserBenchmark {
+
+    /**
+     * Number of parsed messages.
+     */
+    private static final int MESSAGES = 100000;
+
+    /**
+     * Parse messages repeatedly.
+     *
+     * @param texts messages
+     * @param n     number of messages to parse
+     * @param regex use the regular expressions used before
+     * @return number of messages with a sender
+     */
+    private static int parseAll(final String[] texts, final int n, final boolean regex) {
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            final String text = texts[i % texts.length];
+            if ((regex ? ForwardedSmsParserTest.parseRegex(text)
+                    : ForwardedSmsParser.DEFAULT.parse(text)) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testParse() {
+        final String[] texts = {"+491701234567: hello world, how are you today?",
+                "Some longer message without any sender in it, just plain text.",
+                "Meeting moved to 10:30, see you there"};
+        // warm up
+        assertEquals(parseAll(texts, MESSAGES, true), parseAll(texts, MESSAGES, false));
+        long t = System.nanoTime();
+        final int foundRegex = parseAll(texts, MESSAGES, true);
+        final long regex = (System.nanoTime() - t) / MESSAGES;
+        t = System.nanoTime();
+        final int foundParser = parseAll(texts, MESSAGES, false);
+        final long parser = (System.nanoTime() - t) / MESSAGES;
+        assertEquals(foundRegex, foundParser);
+        assertTrue("regex: " + regex + "ns, parser: " + parser + "ns per message",
+                parser < regex);
+    }
+}
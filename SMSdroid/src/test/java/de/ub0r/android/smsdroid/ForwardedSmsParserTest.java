@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ForwardedSmsParser}. Results are compared to the regular expressions used
+ * before.
+ *
+ * @author flx
+ */
+public class ForwardedSmsParserTest {
+
+    /**
+     * Characters used for random messages.
+     */
+    private static final String CHARS = "09azAZ+:: -\n\r\u0085\u2028\u2029#";
+
+    /**
+     * Parse a message with the regular expressions used before. Like before, they are compiled
+     * for every message.
+     *
+     * @param text message
+     * @return {@link ForwardedSmsParser.Result} or null if no sender was found
+     */
+    static ForwardedSmsParser.Result parseRegex(final String text) {
+        if (!text.contains(":")) {
+            return null;
+        }
+        final Matcher m = Pattern.compile("([0-9a-zA-Z+]+):").matcher(text);
+        if (!m.find()) {
+            return null;
+        }
+        final Matcher m2 = Pattern.compile("^[0-9a-zA-Z+]+: (.*)").matcher(text);
+        if (m2.find()) {
+            return new ForwardedSmsParser.Result(m.group(1), m2.group(1), true);
+        }
+        return new ForwardedSmsParser.Result(m.group(1), text, false);
+    }
+
+    /**
+     * Check a message against the regular expressions.
+     *
+     * @param text message
+     */
+    private static void assertSameAsRegex(final String text) {
+        final ForwardedSmsParser.Result expected = parseRegex(text);
+        final ForwardedSmsParser.Result actual = ForwardedSmsParser.DEFAULT.parse(text);
+        if (expected == null) {
+            assertNull(text, actual);
+        } else {
+            assertNotNull(text, actual);
+            assertEquals(text, expected.sender, actual.sender);
+            assertEquals(text, expected.text, actual.text);
+            assertEquals(text, expected.stripped, actual.stripped);
+        }
+    }
+
+    @Test
+    public void testNumber() {
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse(
+                "+491701234567: hello world");
+        assertNotNull(r);
+        assertEquals("+491701234567", r.sender);
+        assertEquals("hello world", r.text);
+        assertTrue(r.stripped);
+    }
+
+    @Test
+    public void testName() {
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse("Bank: code 1234");
+        assertNotNull(r);
+        assertEquals("Bank", r.sender);
+        assertEquals("code 1234", r.text);
+        assertTrue(r.stripped);
+    }
+
+    @Test
+    public void testMultiLine() {
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse(
+                "0123: first\nsecond");
+        assertNotNull(r);
+        assertEquals("0123", r.sender);
+        assertEquals("first", r.text);
+        assertTrue(r.stripped);
+    }
+
+    @Test
+    public void testNoSpace() {
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse("0123:text");
+        assertNotNull(r);
+        assertEquals("0123", r.sender);
+        assertEquals("0123:text", r.text);
+        assertFalse(r.stripped);
+    }
+
+    @Test
+    public void testSenderInText() {
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse(
+                "call me at 10:30");
+        assertNotNull(r);
+        assertEquals("10", r.sender);
+        assertEquals("call me at 10:30", r.text);
+        assertFalse(r.stripped);
+    }
+
+    @Test
+    public void testMissingDelimiter() {
+        assertNull(ForwardedSmsParser.DEFAULT.parse("0123 hello world"));
+        assertNull(ForwardedSmsParser.DEFAULT.parse(": hello world"));
+        assertNull(ForwardedSmsParser.DEFAULT.parse("#: hello world"));
+    }
+
+    @Test
+    public void testEmptyBody() {
+        assertNull(ForwardedSmsParser.DEFAULT.parse(null));
+        assertNull(ForwardedSmsParser.DEFAULT.parse(""));
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse("0123: ");
+        assertNotNull(r);
+        assertEquals("0123", r.sender);
+        assertEquals("", r.text);
+        assertTrue(r.stripped);
+    }
+
+    @Test
+    public void testNumberOnly() {
+        assertNull(ForwardedSmsParser.DEFAULT.parse("+491701234567"));
+        final ForwardedSmsParser.Result r = ForwardedSmsParser.DEFAULT.parse("+491701234567:");
+        assertNotNull(r);
+        assertEquals("+491701234567", r.sender);
+        assertEquals("+491701234567:", r.text);
+        assertFalse(r.stripped);
+    }
+
+    @Test
+    public void testDelimiter() {
+        final ForwardedSmsParser.Result r = new ForwardedSmsParser('>').parse("0123> text");
+        assertNotNull(r);
+        assertEquals("0123", r.sender);
+        assertEquals("text", r.text);
+        assertTrue(r.stripped);
+        assertNull(new ForwardedSmsParser('>').parse("0123: text"));
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        final String[] texts = {"+491701234567: hello world", "Bank: code 1234",
+                "0123: first\nsecond", "0123: first\r\nsecond", "0123: a\u2028b", "0123:text",
+                "call me at 10:30", "0123 hello world", ": hello world", "0123: ", "0123:",
+                "+491701234567", "a:b: c", " 0123: text", "0123::  text", "+: text"};
+        for (String text : texts) {
+            assertSameAsRegex(text);
+        }
+        final Random r = new Random(42L);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.setLength(0);
+            final int l = r.nextInt(12);
+            for (int j = 0; j < l; j++) {
+                sb.append(CHARS.charAt(r.nextInt(CHARS.length())));
+            }
+            assertSameAsRegex(sb.toString());
+        }
+    }
+}
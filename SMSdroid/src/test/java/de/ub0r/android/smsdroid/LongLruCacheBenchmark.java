@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation per bind of the message cache: a boxed, access ordered {@link LinkedHashMap} keyed
+ * by negated int ids as used before and {@link LongLruCache}. Benchmarks are not run with the
+ * unit tests.
+ *
+ * @author flx
+ */
+@Ignore("benchmark")
+public class LongLruCacheBenchmark {
+
+    /**
+     * Number of cached messages.
+     */
+    private static final int SIZE = 500;
+
+    /**
+     * Number of binds.
+     */
+    private static final int BINDS = 1000000;
+
+    /**
+     * First message id, well beyond {@link Integer}'s cache of boxed values.
+     */
+    private static final int FIRST_ID = 100000;
+
+    /**
+     * Cache as used before.
+     */
+    private static final class BoxedCache extends LinkedHashMap<Integer, Object> {
+
+        /**
+         * Constructor.
+         */
+        BoxedCache() {
+            super(SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, Object> eldest) {
+            return size() > SIZE;
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far
+     */
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Bind messages from the boxed cache.
+     *
+     * @param cache {@link BoxedCache}
+     * @return number of hits
+     */
+    private static int bindBoxed(final BoxedCache cache) {
+        int hits = 0;
+        for (int i = 0; i < BINDS; i++) {
+            final boolean mms = (i & 1) == 1;
+            final int id = FIRST_ID + i % SIZE / 2;
+            if (cache.get(mms ? -id : id) != null) {
+                ++hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Bind messages from {@link LongLruCache}.
+     *
+     * @param cache {@link LongLruCache}
+     * @return number of hits
+     */
+    private static int bindLong(final LongLruCache<Object> cache) {
+        int hits = 0;
+        for (int i = 0; i < BINDS; i++) {
+            final long mms = i & 1;
+            final long id = FIRST_ID + i % SIZE / 2;
+            if (cache.get(id << 1 | mms) != null) {
+                ++hits;
+            }
+        }
+        return hits;
+    }
+
+    @Test
+    public void testAllocationPerBind() {
+        final Object message = new Object();
+        final BoxedCache boxed = new BoxedCache();
+        final LongLruCache<Object> cache = new LongLruCache<>(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            final int id = FIRST_ID + i / 2;
+            final boolean mms = (i & 1) == 1;
+            boxed.put(mms ? -id : id, message);
+            cache.put((long) id << 1 | (mms ? 1L : 0L), message);
+        }
+        // warm up
+        assertEquals(BINDS, bindBoxed(boxed));
+        assertEquals(BINDS, bindLong(cache));
+
+        long t = allocated();
+        assertEquals(BINDS, bindBoxed(boxed));
+        final long before = (allocated() - t) / BINDS;
+        t = allocated();
+        assertEquals(BINDS, bindLong(cache));
+        final long after = (allocated() - t) / BINDS;
+        assertTrue("before: " + before + " bytes/bind, after: " + after + " bytes/bind",
+                after == 0L && before > 0L);
+    }
+}
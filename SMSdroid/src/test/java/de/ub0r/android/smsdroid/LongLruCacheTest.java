@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link LongLruCache}. Results are compared to an access ordered {@link LinkedHashMap}.
+ *
+ * @author flx
+ */
+public class LongLruCacheTest {
+
+    /**
+     * Reference implementation of an LRU cache bound by size and weight.
+     */
+    private static final class Reference {
+
+        /**
+         * Values in LRU order, least recently used first.
+         */
+        final LinkedHashMap<Long, String> values = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * Weight by key.
+         */
+        final Map<Long, Long> weights = new LinkedHashMap<>();
+
+        /**
+         * Keys of heavy entries.
+         */
+        final Map<Long, Boolean> heavy = new LinkedHashMap<>();
+
+        /**
+         * Maximal number of entries.
+         */
+        final int maxSize;
+
+        /**
+         * Maximal sum of weights.
+         */
+        long maxWeight;
+
+        /**
+         * Sum of all weights.
+         */
+        long weight = 0L;
+
+        /**
+         * Constructor.
+         *
+         * @param maxSize   maximal number of entries
+         * @param maxWeight maximal sum of weights
+         */
+        Reference(final int maxSize, final long maxWeight) {
+            this.maxSize = maxSize;
+            this.maxWeight = maxWeight;
+        }
+
+        /**
+         * @param key key
+         * @return value
+         */
+        String get(final long key) {
+            return values.get(key);
+        }
+
+        /**
+         * @param key   key
+         * @param value value
+         * @param w     weight
+         * @param h     heavy
+         */
+        void put(final long key, final String value, final long w, final boolean h) {
+            if (values.containsKey(key)) {
+                remove(key);
+            } else if (values.size() == maxSize) {
+                remove(values.keySet().iterator().next());
+            }
+            values.put(key, value);
+            weights.put(key, w);
+            heavy.put(key, h);
+            weight += w;
+            trim();
+        }
+
+        /**
+         * @param w maximal weight
+         */
+        void setMaxWeight(final long w) {
+            maxWeight = w;
+            trim();
+        }
+
+        /**
+         * Drop least recently used heavy entries first, then any least recently used entry.
+         */
+        private void trim() {
+            while (weight > maxWeight && !values.isEmpty()) {
+                Long victim = values.keySet().iterator().next();
+                for (Long key : values.keySet()) {
+                    if (heavy.get(key)) {
+                        victim = key;
+                        break;
+                    }
+                }
+                remove(victim);
+            }
+        }
+
+        /**
+         * @param key key
+         */
+        void remove(final long key) {
+            if (values.remove(key) != null) {
+                weight -= weights.remove(key);
+                heavy.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Assert that cache and reference hold the same entries in the same order. Entries are
+     * touched from least to most recently used, which keeps their order.
+     *
+     * @param ref   {@link Reference}
+     * @param cache {@link LongLruCache}
+     * @param keys  all keys ever used
+     */
+    private static void assertSameContent(final Reference ref, final LongLruCache<String> cache,
+                                          final long[] keys) {
+        assertEquals(ref.values.size(), cache.size());
+        assertEquals(ref.weight, cache.weight());
+        for (long key : keys) {
+            if (!ref.values.containsKey(key)) {
+                assertNull(cache.get(key));
+            }
+        }
+        for (Map.Entry<Long, String> e : new ArrayList<>(ref.values.entrySet())) {
+            assertSame(ref.get(e.getKey()), cache.get(e.getKey()));
+        }
+    }
+
+    /**
+     * Run random operations on cache and reference.
+     *
+     * @param seed      seed
+     * @param maxSize   maximal number of entries
+     * @param maxWeight maximal sum of weights
+     * @param weighted  put weighted entries
+     */
+    private static void runRandom(final long seed, final int maxSize, final long maxWeight,
+                                  final boolean weighted) {
+        final Random r = new Random(seed);
+        // ids beyond the int range, SMS and MMS ids sharing the same id
+        final long[] keys = new long[maxSize * 3];
+        for (int i = 0; i < keys.length; i++) {
+            final long id = i / 2 + (r.nextBoolean() ? 0L : 1L << 40);
+            keys[i] = id << 1 | (i & 1);
+        }
+        final Reference ref = new Reference(maxSize, maxWeight);
+        final LongLruCache<String> cache = new LongLruCache<>(maxSize, maxWeight);
+        for (int i = 0; i < 20000; i++) {
+            final long key = keys[r.nextInt(keys.length)];
+            final int op = r.nextInt(10);
+            if (op < 4) {
+                assertSame(ref.get(key), cache.get(key));
+            } else if (op < 8) {
+                final String value = "v" + i;
+                final long w = weighted ? r.nextInt(100) : 0L;
+                final boolean h = weighted && r.nextInt(4) == 0;
+                ref.put(key, value, w, h);
+                cache.put(key, value, w, h);
+            } else if (op < 9) {
+                ref.remove(key);
+                cache.remove(key);
+            } else if (weighted && r.nextInt(20) == 0) {
+                final long w = maxWeight / 2 + r.nextInt((int) maxWeight);
+                ref.setMaxWeight(w);
+                cache.setMaxWeight(w);
+            }
+            if (i % 100 == 0) {
+                assertSameContent(ref, cache, keys);
+            }
+        }
+        assertSameContent(ref, cache, keys);
+    }
+
+    @Test
+    public void testGetPut() {
+        final LongLruCache<String> cache = new LongLruCache<>(2);
+        assertNull(cache.get(1L));
+        cache.put(1L, "a");
+        cache.put(2L, "b");
+        assertEquals("a", cache.get(1L));
+        cache.put(3L, "c");
+        // 2 was least recently used
+        assertNull(cache.get(2L));
+        assertEquals("a", cache.get(1L));
+        assertEquals("c", cache.get(3L));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testLongKeys() {
+        final LongLruCache<String> cache = new LongLruCache<>(4);
+        cache.put(1L, "a");
+        cache.put(1L | 1L << 32, "b");
+        cache.put(-1L, "c");
+        assertEquals("a", cache.get(1L));
+        assertEquals("b", cache.get(1L | 1L << 32));
+        assertEquals("c", cache.get(-1L));
+        assertNull(cache.get(1L << 32));
+    }
+
+    @Test
+    public void testWeight() {
+        final LongLruCache<String> cache = new LongLruCache<>(10, 10L);
+        cache.put(1L, "a", 4L, false);
+        cache.put(2L, "b", 4L, true);
+        cache.put(3L, "c", 1L, false);
+        assertEquals(9L, cache.weight());
+        cache.put(4L, "d", 4L, false);
+        // the heavy entry goes first although 1 was used less recently
+        assertNull(cache.get(2L));
+        assertEquals("a", cache.get(1L));
+        assertEquals(9L, cache.weight());
+        cache.setMaxWeight(5L);
+        assertNull(cache.get(3L));
+        assertNull(cache.get(4L));
+        assertEquals("a", cache.get(1L));
+        assertEquals(4L, cache.weight());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.weight());
+    }
+
+    @Test
+    public void testSameAsLinkedHashMap() {
+        for (int seed = 0; seed < 20; seed++) {
+            runRandom(seed, 1 + seed * 7, Long.MAX_VALUE, false);
+            runRandom(seed, 1 + seed * 7, 50L + seed * 100L, true);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checking numbers against 50k rules: {@link RuleTrie} and checking every rule on its own.
+ * Benchmarks are not run with the unit tests.
+ *
+ * @author flx
+ */
+@Ignore("benchmark")
+public class RuleTrieBenchmark {
+
+    /**
+     * Number of rules.
+     */
+    private static final int RULES = 50000;
+
+    /**
+     * Number of checked numbers.
+     */
+    private static final int NUMBERS = 1000;
+
+    /**
+     * @param r      {@link Random}
+     * @param prefix prefix
+     * @param length number of digits appended
+     * @return random number
+     */
+    private static String number(final Random r, final String prefix, final int length) {
+        final StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('0' + r.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testMatches50kRules() {
+        final Random r = new Random(42);
+        final List<String> rules = new ArrayList<>(RULES);
+        for (int i = 0; i < RULES; i++) {
+            final int kind = r.nextInt(10);
+            if (kind == 0) {
+                rules.add(number(r, "+1900", 2) + "*");
+            } else if (kind == 1) {
+                rules.add(number(r, "+49", 3) + "???" + number(r, "", 2));
+            } else {
+                rules.add(number(r, "+49", 10));
+            }
+        }
+        rules.add(RuleTrie.SHORT_CODE + "5");
+        final String[] numbers = new String[NUMBERS];
+        for (int i = 0; i < NUMBERS; i++) {
+            numbers[i] = i % 2 == 0 ? number(r, "+49", 10) : number(r, "+1900", 7);
+        }
+
+        long t = System.nanoTime();
+        final RuleTrie trie = new RuleTrie(rules);
+        final long compile = System.nanoTime() - t;
+        assertTrue("compiling took " + compile / 1000000L + "ms", compile < 5000000000L);
+
+        int found = 0;
+        t = System.nanoTime();
+        for (String nr : numbers) {
+            if (RuleTrieTest.matchesAny(rules, nr)) {
+                ++found;
+            }
+        }
+        final long linear = (System.nanoTime() - t) / NUMBERS;
+        // warm up
+        for (String nr : numbers) {
+            trie.matches(nr);
+        }
+        int foundTrie = 0;
+        t = System.nanoTime();
+        for (String nr : numbers) {
+            if (trie.matches(nr)) {
+                ++foundTrie;
+            }
+        }
+        final long matched = (System.nanoTime() - t) / NUMBERS;
+        assertEquals(found, foundTrie);
+        assertTrue("trie: " + matched + "ns, every rule: " + linear + "ns per number",
+                matched * 100L < linear);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010 Felix Bechstein
+ *
+ * This file is part of SMSdroid.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.smsdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RuleTrie}. Results are compared to checking every rule on its own.
+ *
+ * @author flx
+ */
+public class RuleTrieTest {
+
+    /**
+     * Characters used for random rules and numbers.
+     */
+    private static final String CHARS = "0123+?";
+
+    /**
+     * Check a number against a single rule.
+     *
+     * @param rule valid rule
+     * @param nr   number
+     * @return true, if the rule matches
+     */
+    static boolean matchesRule(final String rule, final String nr) {
+        if (rule.startsWith(RuleTrie.SHORT_CODE)) {
+            final int n = Integer.parseInt(rule.substring(RuleTrie.SHORT_CODE.length()));
+            return nr.length() > 0 && nr.length() <= n && nr.matches("[0-9]+");
+        }
+        final boolean prefix = rule.endsWith("*");
+        final int l = prefix ? rule.length() - 1 : rule.length();
+        if (prefix ? nr.length() < l : nr.length() != l) {
+            return false;
+        }
+        for (int i = 0; i < l; i++) {
+            final char r = rule.charAt(i);
+            final char c = nr.charAt(i);
+            if (r == '?' ? c < '0' || c > '9' : r != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check a number against all rules.
+     *
+     * @param rules rules
+     * @param nr    number
+     * @return true, if any valid rule matches
+     */
+    static boolean matchesAny(final List<String> rules, final String nr) {
+        for (String rule : rules) {
+            if (RuleTrie.isValid(rule) && matchesRule(rule, nr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param r      {@link Random}
+     * @param length maximal length
+     * @param chars  characters to choose from
+     * @return random string
+     */
+    private static String random(final Random r, final int length, final String chars) {
+        final StringBuilder sb = new StringBuilder();
+        final int l = r.nextInt(length + 1);
+        for (int i = 0; i < l; i++) {
+            sb.append(chars.charAt(r.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testEmpty() {
+        assertFalse(RuleTrie.EMPTY.matches("+491701234567"));
+        assertFalse(RuleTrie.EMPTY.matches(""));
+        assertFalse(RuleTrie.EMPTY.matches(null));
+    }
+
+    @Test
+    public void testExact() {
+        final RuleTrie t = new RuleTrie(Arrays.asList("+491701234567", "12345"));
+        assertTrue(t.matches("+491701234567"));
+        assertTrue(t.matches("12345"));
+        assertFalse(t.matches("+49170123456"));
+        assertFalse(t.matches("+4917012345678"));
+        assertFalse(t.matches("1234"));
+    }
+
+    @Test
+    public void testAnyDigit() {
+        final RuleTrie t = new RuleTrie(Arrays.asList("+49???1234", "1?3"));
+        assertTrue(t.matches("+491701234"));
+        assertTrue(t.matches("+490001234"));
+        assertFalse(t.matches("+49171234"));
+        assertFalse(t.matches("+4917012345"));
+        assertTrue(t.matches("123"));
+        assertTrue(t.matches("193"));
+        assertFalse(t.matches("13"));
+    }
+
+    @Test
+    public void testAnyDigitIsNoPlus() {
+        final RuleTrie t = new RuleTrie(Arrays.asList("?49123", "??"));
+        assertTrue(t.matches("049123"));
+        assertFalse(t.matches("+49123"));
+        assertTrue(t.matches("12"));
+        assertFalse(t.matches("+1"));
+    }
+
+    @Test
+    public void testTrailingWildcard() {
+        final RuleTrie t = new RuleTrie(Arrays.asList("+1900*", "+44?0*"));
+        assertTrue(t.matches("+1900"));
+        assertTrue(t.matches("+19005551234"));
+        assertFalse(t.matches("+190"));
+        assertFalse(t.matches("+1800555"));
+        assertTrue(t.matches("+44701"));
+        assertFalse(t.matches("+44711"));
+    }
+
+    @Test
+    public void testShortCode() {
+        final RuleTrie t = new RuleTrie(Collections.singletonList("short:5"));
+        assertTrue(t.matches("1"));
+        assertTrue(t.matches("12345"));
+        assertFalse(t.matches("123456"));
+        assertFalse(t.matches("+1234"));
+        assertFalse(t.matches(""));
+    }
+
+    @Test
+    public void testInvalidRulesIgnored() {
+        final List<String> invalid = Arrays.asList(null, "", "*", "12*3", "1**", "abc", "12-34",
+                "short:", "short:0", "short:11", "short:x", "short:-1");
+        for (String rule : invalid) {
+            assertFalse(rule, RuleTrie.isValid(rule));
+        }
+        final RuleTrie t = new RuleTrie(invalid);
+        assertEquals(1, t.size());
+        assertFalse(t.matches("1"));
+        assertFalse(t.matches("123"));
+        assertFalse(t.matches("+491701234567"));
+
+        final List<String> rules = new ArrayList<>(invalid);
+        rules.add("123");
+        final RuleTrie u = new RuleTrie(rules);
+        assertTrue(u.matches("123"));
+        assertFalse(u.matches("1234"));
+    }
+
+    @Test
+    public void testSameAsRules() {
+        final Random r = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            final List<String> rules = new ArrayList<>();
+            final int n = r.nextInt(8);
+            for (int j = 0; j < n; j++) {
+                final int kind = r.nextInt(10);
+                if (kind == 0) {
+                    rules.add(RuleTrie.SHORT_CODE + (1 + r.nextInt(4)));
+                } else if (kind < 4) {
+                    rules.add(random(r, 5, CHARS) + "*");
+                } else {
+                    rules.add(random(r, 6, CHARS));
+                }
+            }
+            final RuleTrie t = new RuleTrie(rules);
+            for (int j = 0; j < 100; j++) {
+                final String nr = random(r, 7, "0123+");
+                assertEquals(rules + " " + nr, matchesAny(rules, nr), t.matches(nr));
+            }
+        }
+    }
+}